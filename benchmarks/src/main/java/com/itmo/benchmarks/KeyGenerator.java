@@ -0,0 +1,96 @@
+package com.itmo.benchmarks;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * генератор ключей из [0, size) с равномерным распределением или распределением Ципфа.
+ * у каждого потока бенчмарка свой генератор
+ */
+abstract class KeyGenerator {
+    static final String UNIFORM = "uniform";
+    static final String ZIPFIAN = "zipfian";
+
+    final SplittableRandom random;
+    final int size;
+
+    KeyGenerator(int size, long seed) {
+        this.size = size;
+        this.random = new SplittableRandom(seed);
+    }
+
+    abstract int next();
+
+    static KeyGenerator create(String distribution, int size, long seed) {
+        switch (distribution) {
+            case UNIFORM:
+                return new Uniform(size, seed);
+            case ZIPFIAN:
+                return new Zipfian(size, seed);
+            default:
+                throw new IllegalArgumentException("unknown key distribution: " + distribution);
+        }
+    }
+
+    private static class Uniform extends KeyGenerator {
+        Uniform(int size, long seed) {
+            super(size, seed);
+        }
+
+        @Override
+        int next() {
+            return random.nextInt(size);
+        }
+    }
+
+    /**
+     * распределение Ципфа с параметром 0.99 (алгоритм Грея и др., как в YCSB).
+     * ранги перемешиваются хешем, чтобы горячие ключи не лежали подряд в начале файла
+     */
+    private static class Zipfian extends KeyGenerator {
+        private static final double THETA = 0.99;
+        // zeta(n) считается за O(n), для одного размера таблицы - один раз на все потоки
+        private static final ConcurrentHashMap<Integer, Double> zetas = new ConcurrentHashMap<>();
+
+        private final double alpha;
+        private final double eta;
+        private final double zetan;
+
+        Zipfian(int size, long seed) {
+            super(size, seed);
+            this.zetan = zetas.computeIfAbsent(size, Zipfian::zeta);
+            double zeta2 = zeta(2);
+            this.alpha = 1.0 / (1.0 - THETA);
+            this.eta = (1 - Math.pow(2.0 / size, 1 - THETA)) / (1 - zeta2 / zetan);
+        }
+
+        private static double zeta(int n) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, THETA);
+            }
+            return sum;
+        }
+
+        @Override
+        int next() {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            long rank;
+            if (uz < 1.0)
+                rank = 0;
+            else if (uz < 1.0 + Math.pow(0.5, THETA))
+                rank = 1;
+            else
+                rank = (long) (size * Math.pow(eta * u - eta + 1, alpha));
+            return (int) Math.floorMod(scramble(rank), (long) size);
+        }
+
+        private static long scramble(long value) {
+            value ^= value >>> 33;
+            value *= 0xff51afd7ed558ccdL;
+            value ^= value >>> 33;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.itmo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * ключи для точечных операций, у каждого потока свой генератор
+ */
+@State(Scope.Thread)
+public class Keys {
+    @Param({KeyGenerator.UNIFORM, KeyGenerator.ZIPFIAN})
+    public String distribution;
+
+    private KeyGenerator generator;
+
+    @Setup(Level.Trial)
+    public void setUp(Table table) {
+        generator = KeyGenerator.create(distribution, table.size, Thread.currentThread().getId());
+    }
+
+    int next() {
+        return generator.next();
+    }
+}
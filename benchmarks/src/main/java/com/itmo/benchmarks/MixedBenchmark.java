@@ -0,0 +1,31 @@
+package com.itmo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * смешанная нагрузка на одну таблицу: три потока читают по ключу, один перезаписывает ключи
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MixedBenchmark {
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public Object read(Table table, Keys keys) {
+        return table.db.getByKey(keys.next(), table.type);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public void write(Table table, Keys keys) {
+        int key = keys.next();
+        table.db.add(key, table.record(key));
+    }
+}
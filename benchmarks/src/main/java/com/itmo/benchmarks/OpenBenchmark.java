@@ -0,0 +1,62 @@
+package com.itmo.benchmarks;
+
+import com.itmo.DbOptions;
+import com.itmo.KVDataBase;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * открытие базы с готовой таблицей до первого чтения, которое ждет загрузки индекса ключей
+ * (чтение файла с ключами или отображение сохраненного индекса при mappedIndex = true)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OpenBenchmark {
+    @Param({Records.PRIMITIVE, Records.STRINGS})
+    public String width;
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean mappedIndex;
+
+    private Path directory;
+    private Class<? extends Records.Keyed> type;
+
+    @Setup(Level.Trial)
+    public void create() throws IOException {
+        directory = Files.createTempDirectory("kvdb-bench");
+        type = Records.type(width);
+        KVDataBase db = KVDataBase.open(directory.toString(), options());
+        Table.fill(db, width, 0, size);
+        KVDataBase.close(directory.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        Table.delete(directory);
+    }
+
+    @Benchmark
+    public Object open() {
+        KVDataBase db = KVDataBase.open(directory.toString(), options());
+        try {
+            return db.getByKey(0, type);
+        } finally {
+            KVDataBase.close(directory.toString());
+        }
+    }
+
+    private DbOptions options() {
+        return new DbOptions().mappedIndex(mappedIndex);
+    }
+}
@@ -0,0 +1,44 @@
+package com.itmo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * точечные операции по ключу на заполненной таблице: add, update, getByKey, remove.
+ * add и update перезаписывают существующие ключи, поэтому размер таблицы не меняется
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PointBenchmark {
+
+    @Benchmark
+    public void add(Table table, Keys keys) {
+        int key = keys.next();
+        table.db.add(key, table.record(key));
+    }
+
+    @Benchmark
+    public void update(Table table, Keys keys) {
+        int key = keys.next();
+        table.db.update(key, table.record(key));
+    }
+
+    @Benchmark
+    public Object getByKey(Table table, Keys keys) {
+        return table.db.getByKey(keys.next(), table.type);
+    }
+
+    /**
+     * удаление с возвратом ключа на место: иначе таблица пустела бы за время измерения
+     */
+    @Benchmark
+    public void removeAndAdd(Table table, Keys keys) {
+        int key = keys.next();
+        table.db.remove(key, table.type);
+        table.db.add(key, table.record(key));
+    }
+}
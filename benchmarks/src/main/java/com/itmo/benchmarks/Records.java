@@ -0,0 +1,81 @@
+package com.itmo.benchmarks;
+
+/**
+ * записи двух ширин: только примитивные поля и записи, состоящие в основном из строк
+ */
+public class Records {
+    public static final String PRIMITIVE = "primitive";
+    public static final String STRINGS = "strings";
+
+    /**
+     * общий доступ к ключу записи для предикатов поиска
+     */
+    public interface Keyed {
+        int key();
+    }
+
+    public static class PrimitiveRecord implements Keyed {
+        int id;
+        long created;
+        long amount;
+        double rate;
+        boolean active;
+
+        public PrimitiveRecord() {
+        }
+
+        PrimitiveRecord(int id) {
+            this.id = id;
+            this.created = 1_500_000_000_000L + id;
+            this.amount = id * 31L;
+            this.rate = id / 7.0;
+            this.active = (id & 1) == 0;
+        }
+
+        @Override
+        public int key() {
+            return id;
+        }
+    }
+
+    public static class StringRecord implements Keyed {
+        int id;
+        String name;
+        String email;
+        String city;
+        String description;
+
+        public StringRecord() {
+        }
+
+        StringRecord(int id) {
+            this.id = id;
+            this.name = "user-" + id;
+            this.email = "user" + id + "@example.com";
+            this.city = CITIES[id % CITIES.length];
+            this.description = "record " + id + " with a medium length description used to make the row string-heavy";
+        }
+
+        @Override
+        public int key() {
+            return id;
+        }
+    }
+
+    private static final String[] CITIES = {"Saint Petersburg", "Moscow", "Novosibirsk", "Kazan", "Yekaterinburg"};
+
+    static Class<? extends Keyed> type(String width) {
+        switch (width) {
+            case PRIMITIVE:
+                return PrimitiveRecord.class;
+            case STRINGS:
+                return StringRecord.class;
+            default:
+                throw new IllegalArgumentException("unknown record width: " + width);
+        }
+    }
+
+    static Keyed create(String width, int id) {
+        return PRIMITIVE.equals(width) ? new PrimitiveRecord(id) : new StringRecord(id);
+    }
+}
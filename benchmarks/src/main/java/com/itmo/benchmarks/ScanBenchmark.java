@@ -0,0 +1,46 @@
+package com.itmo.benchmarks;
+
+import com.itmo.Filters;
+import com.itmo.KVDataBase;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * поиск перебором таблицы: findFirst, которому подходит только последняя запись (полный просмотр),
+ * и findAll, которому подходит каждая тысячная запись. варианты с Filter выбирают столько же записей,
+ * но проверяют их по байтам, не создавая объектов
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark {
+
+    @Benchmark
+    public Object findFirst(Table table) {
+        int last = table.size - 1;
+        return table.db.findFirst(keyed(table), record -> record.key() == last);
+    }
+
+    @Benchmark
+    public List<Records.Keyed> findAll(Table table) {
+        return table.db.findAll(keyed(table), record -> record.key() % 1000 == 0);
+    }
+
+    @Benchmark
+    public Object findFirstFiltered(Table table) {
+        return table.db.findFirst(keyed(table), Filters.eq("id", table.size - 1));
+    }
+
+    @Benchmark
+    public List<Records.Keyed> findAllFiltered(Table table) {
+        return table.db.findAll(keyed(table), Filters.lt("id", table.size / 1000));
+    }
+
+    private static Class<Records.Keyed> keyed(Table table) {
+        return (Class<Records.Keyed>) (Class<?>) table.type;
+    }
+}
@@ -0,0 +1,74 @@
+package com.itmo.benchmarks;
+
+import com.itmo.KVDataBase;
+import com.itmo.WriteBatch;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * заполненная таблица во временной директории, общая для всех потоков бенчмарка.
+ * запись с ключом k хранит id = k, поэтому предикаты поиска могут выбирать записи по ключу
+ */
+@State(Scope.Benchmark)
+public class Table {
+    private static final int BATCH_SIZE = 10_000;
+    private static final int POOL_SIZE = 1024;
+
+    @Param({Records.PRIMITIVE, Records.STRINGS})
+    public String width;
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    Path directory;
+    KVDataBase db;
+    Class<? extends Records.Keyed> type;
+    // готовые записи для перезаписи, чтобы бенчмарк не мерил создание объектов
+    private Records.Keyed[] pool;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        directory = Files.createTempDirectory("kvdb-bench");
+        type = Records.type(width);
+        pool = new Records.Keyed[POOL_SIZE];
+        for (int i = 0; i < POOL_SIZE; i++) {
+            pool[i] = Records.create(width, i);
+        }
+        db = KVDataBase.open(directory.toString());
+        fill(db, width, 0, size);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        KVDataBase.close(directory.toString());
+        delete(directory);
+    }
+
+    Records.Keyed record(int key) {
+        return pool[key & (POOL_SIZE - 1)];
+    }
+
+    /**
+     * записывает пакетами записи с ключами [from, to)
+     */
+    static void fill(KVDataBase db, String width, int from, int to) {
+        for (int start = from; start < to; start += BATCH_SIZE) {
+            WriteBatch batch = db.newBatch();
+            for (int key = start; key < Math.min(to, start + BATCH_SIZE); key++) {
+                batch.put(key, Records.create(width, key));
+            }
+            batch.commit();
+        }
+    }
+
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
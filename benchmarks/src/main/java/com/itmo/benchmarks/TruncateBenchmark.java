@@ -0,0 +1,27 @@
+package com.itmo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * сжатие таблицы, в которой перед каждым вызовом перезаписана десятая часть ключей
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TruncateBenchmark {
+
+    @Setup(Level.Invocation)
+    public void overwrite(Table table) {
+        Table.fill(table.db, table.width, 0, Math.max(1, table.size / 10));
+    }
+
+    @Benchmark
+    public void truncate(Table table) {
+        table.db.truncate(table.type);
+    }
+}
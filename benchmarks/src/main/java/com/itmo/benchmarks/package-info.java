@@ -0,0 +1,17 @@
+/**
+ * JMH-бенчмарки операций {@link com.itmo.KVDataBase}.
+ * <p>
+ * сборка и запуск:
+ * <pre>
+ * mvn install
+ * mvn -f benchmarks/pom.xml package
+ * java -jar benchmarks/target/benchmarks.jar                              - все бенчмарки со всеми параметрами
+ * java -jar benchmarks/target/benchmarks.jar PointBenchmark -p size=10000 -t 4
+ * java -jar benchmarks/target/benchmarks.jar PointBenchmark -prof gc      - выделение памяти на операцию
+ * </pre>
+ * параметры: width - ширина записи (primitive - только примитивы, strings - в основном строки),
+ * size - количество записей в таблице (от 10 тыс. до 10 млн), distribution - распределение ключей
+ * (uniform - равномерное, zipfian - Ципфа, часть ключей горячая). число потоков задается ключом -t,
+ * смешанная нагрузка читателей и писателя - в {@link com.itmo.benchmarks.MixedBenchmark}
+ */
+package com.itmo.benchmarks;
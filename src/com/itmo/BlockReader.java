@@ -0,0 +1,332 @@
+package com.itmo;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * последовательное чтение файла с данными большими блоками (по умолчанию 1 МБ).
+ * читает позиционно через FileChannel, не трогая позицию канала, поэтому не мешает записи и другим читателям.
+ * переход к смещению внутри уже прочитанного блока не обращается к диску,
+ * так что просмотр записей в порядке смещений сводится к последовательному чтению файла.
+ * смещения составные ({@link Segment}): переход в другой сегмент переключает канал и сбрасывает блок.
+ * при чтении через общие каналы таблицы канал, закрытый прерыванием другого потока, открывается заново
+ */
+class BlockReader implements SeekableInput {
+    static final int BLOCK_SIZE = 1 << 20;
+
+    // собственные каналы сегментов по номерам или null при чтении через общие каналы таблицы
+    private FileChannel[] channels;
+    // таблица, чьи общие каналы чтения используются, или null для собственных каналов
+    private DbDescriptor descriptor;
+    private Segment segment;
+    private int segmentId = -1;
+    private FileChannel channel;
+    private final ByteBuffer buffer;
+    // позиция в сегменте, которой соответствует начало буфера
+    private long bufferStart;
+    // перезапись на месте таблицы на время readRecord или null
+    private StripedSeqLock seqLock;
+    // номера полос перезаписи, снятые до чтения самых ранних байт буфера, или null
+    private long[] snapshot;
+
+    BlockReader(FileChannel channel) {
+        this(new FileChannel[]{channel}, BLOCK_SIZE);
+    }
+
+    BlockReader(FileChannel channel, int blockSize) {
+        this(new FileChannel[]{channel}, blockSize);
+    }
+
+    /**
+     * чтение через собственные каналы
+     *
+     * @param channels каналы сегментов по номерам
+     */
+    BlockReader(FileChannel[] channels, int blockSize) {
+        this.channels = channels;
+        this.segmentId = 0;
+        this.channel = channels[0];
+        this.buffer = ByteBuffer.allocate(blockSize);
+        this.buffer.limit(0);
+    }
+
+    /**
+     * чтение через общие каналы сегментов таблицы {@link Segment#readChannel}
+     */
+    BlockReader(DbDescriptor descriptor, int blockSize) {
+        this.descriptor = descriptor;
+        this.buffer = ByteBuffer.allocate(blockSize);
+        this.buffer.limit(0);
+    }
+
+    /**
+     * переиспользуемое чтение записей: таблица задается методом {@link #attach(DbDescriptor)} перед каждым чтением.
+     * буфер прямой, канал читает в него без промежуточного копирования
+     */
+    BlockReader(int blockSize) {
+        this.buffer = ByteBuffer.allocateDirect(blockSize);
+        this.buffer.limit(0);
+    }
+
+    /**
+     * переключает чтение на общие каналы таблицы и сбрасывает прочитанный блок:
+     * после сжатия сегменты таблицы могли смениться
+     */
+    void attach(DbDescriptor descriptor) {
+        this.descriptor = descriptor;
+        this.channels = null;
+        this.segment = null;
+        this.segmentId = -1;
+        this.channel = null;
+        this.bufferStart = 0;
+        this.buffer.limit(0);
+        this.snapshot = null;
+    }
+
+    @Override
+    public void seek(long offset) {
+        int id = Segment.id(offset);
+        long position = Segment.position(offset);
+        if (id == segmentId && position >= bufferStart && position <= bufferStart + buffer.limit()) {
+            buffer.position((int) (position - bufferStart));
+        } else {
+            if (id != segmentId)
+                switchSegment(id);
+            // блок прочитается при первом обращении
+            bufferStart = position;
+            buffer.limit(0);
+        }
+    }
+
+    private void switchSegment(int id) {
+        segmentId = id;
+        if (descriptor != null) {
+            segment = descriptor.segment(id);
+            channel = segment.readChannel;
+        } else {
+            channel = channels[id];
+        }
+    }
+
+    /**
+     * @return составное смещение текущей позиции
+     */
+    long position() {
+        return Segment.offset(Math.max(segmentId, 0), bufferStart + buffer.position());
+    }
+
+    /**
+     * дочитывает следующий блок так, чтобы в буфере было хотя бы size непрочитанных байт
+     */
+    private void ensure(int size) throws IOException {
+        if (buffer.remaining() >= size)
+            return;
+        if (segmentId < 0)
+            switchSegment(0);
+        long position = bufferStart + buffer.position();
+        // номера полос снимаются до чтения: записи, перезаписанные после этого, проверка отбросит
+        if (!buffer.hasRemaining())
+            snapshot = seqLock == null ? null : seqLock.snapshot();
+        buffer.compact();
+        bufferStart = position;
+        while (buffer.hasRemaining()) {
+            if (read() < 0)
+                break;
+        }
+        buffer.flip();
+        if (buffer.remaining() < size)
+            throw new EOFException();
+    }
+
+    /**
+     * читает запись по смещению, проверяя ее полосу по номерам, снятым до чтения блока.
+     * запись, которая могла перезаписываться во время чтения блока, перечитывается в блок одна,
+     * остальные записи блока остаются и проверяются по прежним номерам своих полос
+     */
+    @Override
+    public Object readRecord(RecordReader reader, long offset, StripedSeqLock seqLock) throws IOException {
+        if (seqLock == null) {
+            seek(offset);
+            return reader.read(this, offset);
+        }
+        this.seqLock = seqLock;
+        try {
+            seek(offset);
+            // блок, прочитанный без проверки перезаписи, отбрасывается
+            if (snapshot == null)
+                buffer.limit(buffer.position());
+            Object object = reader.read(this, offset);
+            if (snapshot != null && seqLock.unchanged(offset, snapshot))
+                return object;
+            while (true) {
+                long sequence = seqLock.sequence(offset);
+                reread(offset, seqLock.recordSize);
+                object = reader.read(this, offset);
+                if (seqLock.unchanged(offset, sequence))
+                    return object;
+            }
+        } finally {
+            this.seqLock = null;
+        }
+    }
+
+    /**
+     * заново читает в блок байты одной записи и ставит позицию на ее начало.
+     * запись, которая целиком в блок не попадает, читается новым блоком
+     */
+    private void reread(long offset, int size) throws IOException {
+        seek(offset);
+        int index = buffer.position();
+        if (buffer.limit() - index < size) {
+            buffer.limit(index);
+            return;
+        }
+        ByteBuffer record = buffer.duplicate();
+        record.limit(index + size);
+        while (record.hasRemaining()) {
+            if (read(record, bufferStart + record.position()) < 0)
+                throw new EOFException();
+        }
+    }
+
+    private int read() throws IOException {
+        return read(buffer, bufferStart + buffer.position());
+    }
+
+    private int read(ByteBuffer target, long position) throws IOException {
+        while (true) {
+            try {
+                int n = channel.read(target, position);
+                if (descriptor != null && n > 0)
+                    descriptor.metrics.dataBytesRead.add(n);
+                return n;
+            } catch (ClosedChannelException e) {
+                // канал закрыло прерывание другого потока - читаем через новый; свое прерывание пробрасывается
+                if (descriptor == null || Thread.currentThread().isInterrupted() || e instanceof ClosedByInterruptException)
+                    throw e;
+                segment.reopenReadChannel(channel);
+                channel = segment.readChannel;
+            }
+        }
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffer.hasRemaining())
+                ensure(1);
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        seek(position() + n);
+        return n;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        ensure(Byte.BYTES);
+        return buffer.get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        ensure(Short.BYTES);
+        return buffer.getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        ensure(Character.BYTES);
+        return buffer.getChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        ensure(Integer.BYTES);
+        return buffer.getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        ensure(Long.BYTES);
+        return buffer.getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        ensure(Float.BYTES);
+        return buffer.getFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        ensure(Double.BYTES);
+        return buffer.getDouble();
+    }
+
+    /**
+     * читает строку байт до '\n', '\r' или "\r\n", как {@link DataInputStream#readLine()}: байт считается символом
+     *
+     * @return строка без конца строки или null, если файл уже кончился
+     */
+    @Override
+    public String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int c;
+            try {
+                c = readUnsignedByte();
+            } catch (EOFException e) {
+                return line.length() == 0 ? null : line.toString();
+            }
+            if (c == '\n')
+                return line.toString();
+            if (c == '\r') {
+                try {
+                    if (readUnsignedByte() != '\n')
+                        seek(position() - 1);
+                } catch (EOFException e) {
+                    // файл кончился сразу после '\r'
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
@@ -0,0 +1,77 @@
+package com.itmo;
+
+/**
+ * статистика кэша прочитанных объектов одной таблицы
+ */
+public class CacheStats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long entries;
+    private final long bytes;
+
+    CacheStats(long hits, long misses, long evictions, long entries, long bytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return количество запросов, обслуженных из кэша
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return количество запросов, для которых пришлось читать файл
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return количество объектов, вытесненных из-за превышения бюджета
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return количество объектов в кэше
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return примерный объем объектов в кэше в байтах
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return доля запросов, обслуженных из кэша
+     */
+    public double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    /**
+     * @return сумма статистики кэшей двух шардов таблицы
+     */
+    CacheStats merge(CacheStats other) {
+        return new CacheStats(hits + other.hits, misses + other.misses, evictions + other.evictions,
+                entries + other.entries, bytes + other.bytes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d, misses=%d, hitRate=%.3f, evictions=%d, entries=%d, bytes=%d",
+                hits, misses, getHitRate(), evictions, entries, bytes);
+    }
+}
@@ -0,0 +1,127 @@
+package com.itmo;
+
+import java.io.*;
+
+/**
+ * новые файлы таблицы, которые строит сжатие: в новый сегмент копируются только актуальные записи переписываемых сегментов.
+ * пока идет копирование, старые файлы продолжают читаться и дописываться,
+ * записи, сделанные за это время, потом догоняются по хвосту файла с ключами
+ */
+class Compaction implements Closeable {
+    // номер нового сегмента
+    final int segmentId;
+    // переписываемые сегменты по номерам
+    final boolean[] victims;
+    final File dataFile;
+    final File keyFile;
+    // индекс 'ключ - смещение' для новых файлов
+    final KeyOffsetIndex index;
+
+    private final FileOutputStream dataStream;
+    private final FileOutputStream keyStream;
+    private final DataOutputStream data;
+    private final DataOutputStream keys;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private long position;
+    private long keyEntries;
+    private boolean closed;
+
+    // прогресс для статистики, читается из других потоков
+    final long total;
+    volatile long copied;
+
+    Compaction(int segmentId, boolean[] victims, File dataFile, File keyFile, KeyOffsetIndex index, int expectedKeys) throws IOException {
+        this.segmentId = segmentId;
+        this.victims = victims;
+        this.dataFile = dataFile;
+        this.keyFile = keyFile;
+        this.index = index;
+        this.total = expectedKeys;
+        this.dataStream = new FileOutputStream(dataFile);
+        this.keyStream = new FileOutputStream(keyFile);
+        this.data = new DataOutputStream(new BufferedOutputStream(dataStream, 1 << 20));
+        this.keys = new DataOutputStream(new BufferedOutputStream(keyStream, 1 << 16));
+    }
+
+    /**
+     * @return true, если запись с этим смещением лежит в переписываемом сегменте
+     */
+    boolean rewrites(long offset) {
+        return rewrites(victims, offset);
+    }
+
+    static boolean rewrites(boolean[] victims, long offset) {
+        int id = Segment.id(offset);
+        return id < victims.length && victims[id];
+    }
+
+    /**
+     * дописывает объект в новый сегмент
+     *
+     * @return смещение объекта в новом сегменте
+     */
+    long copyRecord(Object object, RecordCodec codec) throws IOException {
+        record.reset();
+        codec.write(object, recordOut);
+        long offset = Segment.offset(segmentId, position);
+        record.writeTo(data);
+        position += record.size();
+        copied++;
+        return offset;
+    }
+
+    /**
+     * @return true, если в новый сегмент ничего не скопировано
+     */
+    boolean isEmpty() {
+        return position == 0;
+    }
+
+    /**
+     * дописывает ключ в новый файл с ключами и в новый индекс, отрицательное смещение - удаление ключа
+     */
+    void writeKey(int key, long offset) throws IOException {
+        if (offset < 0 && index.get(key) < 0)
+            return;
+        keys.writeInt(key);
+        keys.writeLong(offset);
+        keyEntries++;
+        index.put(key, offset);
+    }
+
+    /**
+     * @return количество записей в новом файле с ключами
+     */
+    long keyEntries() {
+        return keyEntries;
+    }
+
+    /**
+     * дописывает буферы в новые файлы и закрывает их
+     *
+     * @param force true - сбросить файлы на диск до замены старых
+     * @throws IOException
+     */
+    void finish(boolean force) throws IOException {
+        data.flush();
+        keys.flush();
+        if (force) {
+            dataStream.getChannel().force(false);
+            keyStream.getChannel().force(false);
+        }
+        close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            data.close();
+        } finally {
+            keys.close();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.itmo;
+
+/**
+ * статистика сжатия файлов одной таблицы
+ */
+public class CompactionStats {
+    private final boolean running;
+    private final long copied;
+    private final long total;
+    private final long compactions;
+    private final long lastReclaimedBytes;
+    private final long totalReclaimedBytes;
+    private final long lastDurationMillis;
+    private final double deadRatio;
+    private final long failedCompactions;
+    private final Throwable lastError;
+
+    CompactionStats(boolean running, long copied, long total, long compactions,
+                    long lastReclaimedBytes, long totalReclaimedBytes, long lastDurationMillis, double deadRatio,
+                    long failedCompactions, Throwable lastError) {
+        this.running = running;
+        this.copied = copied;
+        this.total = total;
+        this.compactions = compactions;
+        this.lastReclaimedBytes = lastReclaimedBytes;
+        this.totalReclaimedBytes = totalReclaimedBytes;
+        this.lastDurationMillis = lastDurationMillis;
+        this.deadRatio = deadRatio;
+        this.failedCompactions = failedCompactions;
+        this.lastError = lastError;
+    }
+
+    /**
+     * @return true, если сжатие выполняется сейчас
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return доля скопированных записей текущего сжатия от 0 до 1, 0 - если сжатие не идет
+     */
+    public double getProgress() {
+        return !running || total == 0 ? 0 : Math.min(1.0, (double) copied / total);
+    }
+
+    /**
+     * @return количество завершенных сжатий
+     */
+    public long getCompactions() {
+        return compactions;
+    }
+
+    /**
+     * @return сколько байт освободило последнее сжатие
+     */
+    public long getLastReclaimedBytes() {
+        return lastReclaimedBytes;
+    }
+
+    /**
+     * @return сколько байт освободили все сжатия с момента открытия базы
+     */
+    public long getTotalReclaimedBytes() {
+        return totalReclaimedBytes;
+    }
+
+    /**
+     * @return длительность последнего сжатия в миллисекундах
+     */
+    public long getLastDurationMillis() {
+        return lastDurationMillis;
+    }
+
+    /**
+     * @return примерная доля устаревших записей в файлах таблицы
+     */
+    public double getDeadRatio() {
+        return deadRatio;
+    }
+
+    /**
+     * @return количество фоновых сжатий, завершившихся ошибкой (файлы таблицы при этом не меняются)
+     */
+    public long getFailedCompactions() {
+        return failedCompactions;
+    }
+
+    /**
+     * @return ошибка последнего неудавшегося фонового сжатия или null
+     */
+    public Throwable getLastError() {
+        return lastError;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("running=%b, progress=%.2f, compactions=%d, lastReclaimed=%d, totalReclaimed=%d, lastDuration=%dms, deadRatio=%.2f, failed=%d",
+                running, getProgress(), compactions, lastReclaimedBytes, totalReclaimedBytes, lastDurationMillis, deadRatio,
+                failedCompactions);
+    }
+}
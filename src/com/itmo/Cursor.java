@@ -0,0 +1,149 @@
+package com.itmo;
+
+import com.itmo.exceptions.EndOfFileException;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * ленивый просмотр таблицы: объекты читаются из файла с данными по одному, по мере того как их запрашивают.
+ * создается методами {@link KVDataBase#cursor(Class, Predicate)} и {@link KVDataBase#stream(Class)}:
+ * <pre>
+ *     try (Stream&lt;A&gt; stream = db.stream(A.class)) {
+ *         stream.filter(a -&gt; a.value &gt; 10).limit(100).forEach(...);
+ *     }
+ * </pre>
+ * в памяти держатся только смещения актуальных записей на момент создания курсора и буфер чтения.
+ * курсор читает сегменты файла через собственные каналы, которые закрываются, когда объекты закончились или курсор закрыт.
+ * шарды таблицы просматриваются по очереди, у каждого свои каналы
+ *
+ * @param <T> тип объектов таблицы
+ */
+public class Cursor<T> implements Iterator<T>, AutoCloseable {
+    private final RecordCodec codec;
+    private final Predicate<? super T> predicate;
+    private final long[][] offsets;
+    private final FileChannel[][] channels;
+    // перезапись на месте каждого шарда или null, если записи шарда только дописываются
+    private final StripedSeqLock[] seqLocks;
+    private BlockReader input;
+    // просматриваемый шард и позиция в его смещениях
+    private int shard = -1;
+    private int position;
+    private T next;
+    private boolean closed;
+
+    /**
+     * @param channels каналы сегментов каждого шарда по номерам, открытые вместе со снятием смещений
+     * @param offsets  смещения актуальных записей каждого шарда
+     * @param seqLocks перезапись на месте каждого шарда
+     */
+    Cursor(RecordCodec codec, FileChannel[][] channels, long[][] offsets, StripedSeqLock[] seqLocks,
+           Predicate<? super T> predicate) {
+        this.codec = codec;
+        this.predicate = predicate;
+        this.offsets = offsets;
+        this.channels = channels;
+        this.seqLocks = seqLocks;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null)
+            return true;
+        if (closed)
+            return false;
+        try {
+            while (nextShard()) {
+                while (position < offsets[shard].length) {
+                    T object;
+                    try {
+                        object = (T) input.readRecord(codec, offsets[shard][position++], seqLocks[shard]);
+                    } catch (EndOfFileException e) {
+                        // запись не дописана до конца файла, остальные записи шарда могут лежать в других сегментах
+                        continue;
+                    }
+                    if (predicate.test(object)) {
+                        next = object;
+                        return true;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException(e);
+        }
+        close();
+        return false;
+    }
+
+    /**
+     * переходит к следующему шарду, если текущий просмотрен, и закрывает каналы просмотренного
+     *
+     * @return false, если шардов больше нет
+     */
+    private boolean nextShard() throws IOException {
+        while (shard < 0 || position == offsets[shard].length) {
+            if (shard >= 0)
+                closeChannels(channels[shard]);
+            if (++shard == channels.length)
+                return false;
+            position = 0;
+            if (offsets[shard].length > 0)
+                input = new BlockReader(channels[shard], BlockReader.BLOCK_SIZE);
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        T object = next;
+        next = null;
+        return object;
+    }
+
+    /**
+     * @return поток объектов курсора, закрытие потока закрывает курсор
+     */
+    public Stream<T> stream() {
+        Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(this::close);
+    }
+
+    /**
+     * закрывает каналы чтения, после этого курсор не возвращает объектов
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        next = null;
+        try {
+            for (FileChannel[] shardChannels : channels) {
+                closeChannels(shardChannels);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * закрывает каналы сегментов, null - номер сегмента не занят
+     */
+    static void closeChannels(FileChannel[] channels) throws IOException {
+        for (FileChannel channel : channels) {
+            if (channel != null)
+                channel.close();
+        }
+    }
+}
@@ -1,54 +1,239 @@
 package com.itmo;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class DbDescriptor {
-    Lock lock = new ReentrantLock();
+    // чтение: поиск и чтение записей; запись: замена файлов таблицы и публикация пакета изменений
+    ReadWriteLock tableLock = new ReentrantReadWriteLock();
+    // порядок дописывания в файлы таблицы, берется до tableLock
+    Lock appendLock = new ReentrantLock();
+    // путь к сегменту 0 файла с данными, он же определяет таблицу
     Path filePath;
     Path keyFilePath;
-    Reader[] readers = new Reader[10];
+    // сегменты файла с данными по номерам, null - номер не занят. массив заменяется целиком под appendLock.
+    // номера не переиспользуются, поэтому ячейки удаленных сегментов остаются пустыми: 8 байт на каждый созданный сегмент
+    volatile Segment[] segments = new Segment[0];
+    // дописываемый сегмент, меняется под appendLock
+    Segment active;
+    // номер следующего нового сегмента, выдается методом newSegmentId под appendLock
+    int nextSegmentId;
+    // количество закрытых для записи сегментов с момента открытия
+    volatile long rollovers;
     RandomAccessFile dbFileWriter;
     RandomAccessFile keyFileWriter;
+    // длины активного сегмента и файла с ключами, меняются под appendLock вместе с дописыванием
+    volatile long dataTail;
+    long keyTail;
+    // буферы для кодирования записи и записи ключа, используются под appendLock
+    final RecordBuffer writeBuffer = new RecordBuffer();
+    final ByteBuffer keyEntry = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
     Field[] fields;
+    RecordCodec codec;
+    // размер записи в байтах, если все поля фиксированной длины, иначе -1
+    final int fixedRecordSize;
+    // перезапись записей на месте при update или null, если записи таблицы только дописываются
+    StripedSeqLock seqLock;
+    // сжатие без сегментов переписывает дописываемый файл, на это время update дописывает запись.
+    // ставится под appendLock, чтобы перезапись, начатая до сжатия, закончилась до копирования
+    volatile boolean compacting;
+    volatile FileSync sync;
+    RecordCache recordCache;
+    // несброшенные изменения в режиме записи в фоне или null
+    Memtable memtable;
+    ScanCache scanCache;
+    // вторичные индексы по именам полей, помеченных @Index
+    Map<String, SecondaryIndex> secondaryIndexes = new LinkedHashMap<>();
+    // версия таблицы, увеличивается после каждого изменения индекса (под appendLock)
+    volatile long epoch;
+    Class<?> type;
+    // имя файлов таблицы без расширения: Type или Type-N для шарда N
+    String name;
+    TableMetrics metrics = new TableMetrics();
+
+    // одно сжатие таблицы за раз
+    Lock compactionLock = new ReentrantLock();
+    // выполняемое сейчас сжатие или null
+    volatile Compaction compaction;
+    // фоновое сжатие уже поставлено в очередь
+    AtomicBoolean compactionScheduled = new AtomicBoolean();
+    // количество записей в файле с ключами, меняется под appendLock
+    volatile long keyEntries;
+    // значение keyEntries при последней проверке, не пора ли сжимать
+    volatile long compactionCheck;
+    // значение rollovers при последней проверке, не пора ли сжимать сегменты
+    volatile long compactionRollovers;
+    long compactions;
+    long lastReclaimedBytes;
+    long totalReclaimedBytes;
+    long lastCompactionMillis;
 
     public DbDescriptor(Path filePath,
-                        RandomAccessFile dbFile,
                         Path keyFilePath,
                         RandomAccessFile keyFile,
-                        Field[] fields) throws FileNotFoundException {
+                        Field[] fields,
+                        RecordCodec codec) throws IOException {
         this.filePath = filePath;
-        this.dbFileWriter = dbFile;
         this.fields = fields;
+        this.codec = codec;
+        int size = codec.fixedSize();
+        this.fixedRecordSize = size > 0 ? size : -1;
         this.keyFilePath = keyFilePath;
+        reopenKeys(keyFile);
+    }
+
+    /**
+     * подключает дескриптор к новому файлу с ключами после его переписывания
+     *
+     * @param keyFile файл с ключами
+     * @throws IOException
+     */
+    void reopenKeys(RandomAccessFile keyFile) throws IOException {
         this.keyFileWriter = keyFile;
-        openReaders();
+        this.keyTail = keyFile.length();
+    }
+
+    /**
+     * делает сегмент дописываемым
+     *
+     * @param segment сегмент, уже добавленный методом {@link #putSegment(Segment)}
+     * @param writer  файл сегмента, открытый на запись
+     * @throws IOException
+     */
+    void activate(Segment segment, RandomAccessFile writer) throws IOException {
+        this.active = segment;
+        this.dbFileWriter = writer;
+        this.dataTail = writer.length();
+    }
+
+    /**
+     * @return сегмент с данным номером или null, если его нет
+     */
+    Segment segment(int id) {
+        Segment[] current = segments;
+        return id < current.length ? current[id] : null;
+    }
+
+    /**
+     * выдает номер нового сегмента, вызывается под appendLock.
+     * номера не переиспользуются: ими упакованы смещения в файле с ключами,
+     * а дописываемым при открытии считается сегмент с наибольшим номером
+     *
+     * @throws IllegalStateException если номера сегментов таблицы кончились
+     */
+    int newSegmentId() {
+        if (nextSegmentId > Segment.MAX_ID)
+            throw new IllegalStateException("Table " + name + " has used all " + Segment.MAX_ID
+                    + " segment ids, copy its records into a new table with a larger segment size");
+        return nextSegmentId++;
+    }
+
+    /**
+     * добавляет сегмент или заменяет сегмент с тем же номером
+     */
+    void putSegment(Segment segment) {
+        Segment[] current = segments;
+        Segment[] updated = Arrays.copyOf(current, Math.max(current.length, segment.id + 1));
+        updated[segment.id] = segment;
+        segments = updated;
     }
 
-    private void openReaders() throws FileNotFoundException {
-        for (int i = 0; i < readers.length; i++) {
-            readers[i] = new Reader(new RandomAccessFile(filePath.toFile(), "r"));
+    /**
+     * убирает сегмент из таблицы, сам сегмент не закрывается
+     */
+    void removeSegment(int id) {
+        Segment[] updated = segments.clone();
+        updated[id] = null;
+        segments = updated;
+    }
+
+    /**
+     * @return наибольший занятый номер сегмента
+     */
+    int lastSegmentId() {
+        Segment[] current = segments;
+        for (int id = current.length - 1; id >= 0; id--) {
+            if (current[id] != null)
+                return id;
+        }
+        return -1;
+    }
+
+    /**
+     * @return суммарная длина сегментов файла с данными
+     */
+    long dataBytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            if (segment != null)
+                total += segment == active ? dataTail : segment.length;
         }
+        return total;
     }
 
-    public Reader getReader() {
-        lock.lock();
-        for (Reader reader : readers) {
-            if (!reader.isBusy()) {
-                reader.lock();
-                lock.unlock();
-                return reader;
+    /**
+     * открывает собственные каналы чтения всех сегментов, вызывается под блокировкой таблицы на чтение
+     *
+     * @return каналы по номерам сегментов, null - номер не занят
+     * @throws IOException
+     */
+    FileChannel[] openSegmentChannels() throws IOException {
+        Segment[] current = segments;
+        FileChannel[] channels = new FileChannel[current.length];
+        try {
+            for (int id = 0; id < current.length; id++) {
+                if (current[id] != null)
+                    channels[id] = FileChannel.open(current[id].path, StandardOpenOption.READ);
             }
+        } catch (IOException e) {
+            try {
+                Cursor.closeChannels(channels);
+            } catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw e;
         }
-        lock.unlock();
-        return null;
+        return channels;
+    }
+
+    /**
+     * берет блокировку дописывания, замеряя время ожидания
+     */
+    void lockAppend() {
+        long start = System.nanoTime();
+        appendLock.lock();
+        metrics.appendLockWait.record(System.nanoTime() - start);
+    }
+
+    /**
+     * берет блокировку таблицы на чтение, замеряя время ожидания
+     */
+    void lockRead() {
+        long start = System.nanoTime();
+        tableLock.readLock().lock();
+        metrics.tableLockWait.record(System.nanoTime() - start);
     }
 
-    public void releaseReader(Reader reader) {
-        reader.release();
+    /**
+     * @return источник для просмотра сегментов файла с данными: отображение в память или чтение блоками по 1 МБ.
+     * у каждого просмотра свой источник, позиционное чтение канала не мешает другим потокам
+     */
+    SeekableInput scanInput() {
+        if (active.mappedFile != null)
+            return new MappedDataFile.Input(this);
+        return new BlockReader(this, BlockReader.BLOCK_SIZE);
     }
 }
@@ -0,0 +1,181 @@
+package com.itmo;
+
+/**
+ * настройки базы данных, передаются в {@link KVDataBase#open(String, DbOptions)}.
+ * учитываются только при первом открытии директории
+ */
+public class DbOptions {
+    boolean mappedReads;
+    Durability durability = Durability.NONE;
+    long syncIntervalMillis = 1000;
+    int recordCacheEntries;
+    long recordCacheBytes;
+    boolean scanCache;
+    double compactionDeadRatio;
+    boolean mappedIndex;
+    int shards = 1;
+    long segmentSize;
+    long writeBehindBytes;
+    long flushIntervalMillis;
+    boolean jmx = true;
+    MetricsListener metricsListener;
+
+    /**
+     * включает чтение файлов с данными через отображение в память (FileChannel.map) вместо RandomAccessFile
+     *
+     * @param enabled true - читать через отображение в память
+     * @return возвращает эти же настройки
+     */
+    public DbOptions mappedReads(boolean enabled) {
+        this.mappedReads = enabled;
+        return this;
+    }
+
+    /**
+     * задает режим сброса записанных данных на диск
+     *
+     * @param durability режим сброса, по умолчанию {@link Durability#NONE}
+     * @return возвращает эти же настройки
+     */
+    public DbOptions durability(Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    /**
+     * задает период сброса данных на диск для режима {@link Durability#PERIODIC}
+     *
+     * @param millis период в миллисекундах, по умолчанию 1000
+     * @return возвращает эти же настройки
+     */
+    public DbOptions syncInterval(long millis) {
+        this.syncIntervalMillis = millis;
+        return this;
+    }
+
+    /**
+     * включает кэш прочитанных объектов для getByKey с вытеснением давно не использованных (LRU).
+     * бюджет задается на каждую таблицу, объекты из кэша отдаются без копирования, их нельзя изменять
+     *
+     * @param maxEntries максимальное количество объектов одной таблицы, 0 - без ограничения по количеству
+     * @param maxBytes   максимальный примерный объем объектов одной таблицы в байтах, 0 - без ограничения по объему
+     * @return возвращает эти же настройки
+     */
+    public DbOptions recordCache(int maxEntries, long maxBytes) {
+        this.recordCacheEntries = maxEntries;
+        this.recordCacheBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * включает кэш просмотров для findAll/findFirst: все объекты таблицы держатся в памяти,
+     * пока таблица не изменится, после изменения кэш перестраивается при следующем просмотре.
+     * объекты из кэша отдаются без копирования, их нельзя изменять
+     *
+     * @param enabled true - хранить результаты просмотров в памяти
+     * @return возвращает эти же настройки
+     */
+    public DbOptions scanCache(boolean enabled) {
+        this.scanCache = enabled;
+        return this;
+    }
+
+    /**
+     * включает фоновое сжатие: когда доля устаревших записей в файлах таблицы достигает порога,
+     * актуальные записи копируются в новые файлы, не останавливая чтение и запись
+     *
+     * @param deadRatio порог доли устаревших записей от 0 до 1, 0 - сжатие только вызовом truncate
+     * @return возвращает эти же настройки
+     */
+    public DbOptions autoCompaction(double deadRatio) {
+        this.compactionDeadRatio = deadRatio;
+        return this;
+    }
+
+    /**
+     * хранит индекс 'ключ - смещение' каждой таблицы не в куче, а в отображенном в память файле Type.kvhx,
+     * который меняется на месте при каждой записи. после штатного закрытия база открывается без чтения файлов с ключами,
+     * после сбоя индекс строится заново по файлу с ключами
+     *
+     * @param enabled true - индекс в отображенном файле
+     * @return возвращает эти же настройки
+     */
+    public DbOptions mappedIndex(boolean enabled) {
+        this.mappedIndex = enabled;
+        return this;
+    }
+
+    /**
+     * делит каждую таблицу на shards пар файлов Type-N.kvdb / Type-NKeys.kvdb по хешу ключа.
+     * у каждого шарда свой файл, индекс, блокировки и сжатие, поэтому запись в разные шарды идет параллельно,
+     * а сжатие переписывает по одному шарду. просмотр таблицы обходит шарды по очереди.
+     * количество шардов нельзя менять для уже созданной таблицы
+     *
+     * @param shards количество шардов, 1 - без шардирования (файлы Type.kvdb / TypeKeys.kvdb)
+     * @return возвращает эти же настройки
+     */
+    public DbOptions shards(int shards) {
+        if (shards < 1)
+            throw new IllegalArgumentException("shards must be positive: " + shards);
+        this.shards = shards;
+        return this;
+    }
+
+    /**
+     * хранит данные таблицы в сегментах Type.kvdb, Type.1.kvdb, ...: когда дописываемый сегмент дорастает
+     * до segmentSize байт, он закрывается для записи и запись продолжается в новый сегмент.
+     * сжатие переписывает только закрытые сегменты с устаревшими записями, а не весь файл
+     *
+     * @param bytes размер сегмента в байтах, 0 - один файл с данными без сегментов
+     * @return возвращает эти же настройки
+     */
+    public DbOptions segmentSize(long bytes) {
+        if (bytes < 0 || bytes >= Segment.MAX_SIZE)
+            throw new IllegalArgumentException("segment size out of range: " + bytes);
+        this.segmentSize = bytes;
+        return this;
+    }
+
+    /**
+     * включает запись в фоне: add, update и remove кладут изменения в упорядоченную таблицу в памяти
+     * и возвращаются, не дожидаясь диска; фоновый поток пишет накопленное в файлы таблицы большими пакетами,
+     * когда таблица заполнена наполовину или прошел период сброса. getByKey и update сначала смотрят в память,
+     * просмотры, пакеты изменений и truncate сначала сбрасывают изменения таблицы. когда в памяти набирается
+     * maxBytes, запись ждет окончания сброса. изменения, еще не записанные в файлы, теряются при сбое,
+     * режим сброса на диск ({@link #durability(Durability)}) относится к уже записанным пакетам
+     *
+     * @param maxBytes            предел объема несброшенных изменений одной таблицы в байтах, 0 - запись сразу в файлы
+     * @param flushIntervalMillis период сброса в миллисекундах
+     * @return возвращает эти же настройки
+     */
+    public DbOptions writeBehind(long maxBytes, long flushIntervalMillis) {
+        if (maxBytes < 0 || flushIntervalMillis <= 0)
+            throw new IllegalArgumentException("invalid write-behind settings: " + maxBytes + ", " + flushIntervalMillis);
+        this.writeBehindBytes = maxBytes;
+        this.flushIntervalMillis = flushIntervalMillis;
+        return this;
+    }
+
+    /**
+     * регистрирует метрики каждой таблицы как MXBean com.itmo:type=KVDataBase,directory=...,table=Type.
+     * включено по умолчанию, сами метрики собираются всегда
+     *
+     * @param enabled true - регистрировать MXBean
+     * @return возвращает эти же настройки
+     */
+    public DbOptions jmx(boolean enabled) {
+        this.jmx = enabled;
+        return this;
+    }
+
+    /**
+     * задает получателя длительностей операций add, getByKey, findAll и truncate
+     *
+     * @param listener получатель или null
+     * @return возвращает эти же настройки
+     */
+    public DbOptions metricsListener(MetricsListener listener) {
+        this.metricsListener = listener;
+        return this;
+    }
+}
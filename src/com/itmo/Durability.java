@@ -0,0 +1,20 @@
+package com.itmo;
+
+/**
+ * режим сброса записанных данных на диск (fsync)
+ */
+public enum Durability {
+    /**
+     * данные не сбрасываются на диск явно, их запишет операционная система, когда посчитает нужным
+     */
+    NONE,
+    /**
+     * данные сбрасываются на диск фоновым потоком раз в {@link DbOptions#syncInterval(long)} миллисекунд
+     */
+    PERIODIC,
+    /**
+     * запись возвращает управление только после сброса на диск.
+     * потоки, записавшие данные одновременно, ждут один общий сброс
+     */
+    GROUP_COMMIT
+}
@@ -0,0 +1,165 @@
+package com.itmo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * сбрасывает на диск файлы одной таблицы (файл с данными и файл с ключами).
+ * каждая запись получает номер; поток, которому нужен сброс, либо сам становится ведущим и вызывает force
+ * для всех записей, сделанных к этому моменту, либо ждет сброса, который уже выполняет другой поток
+ */
+class FileSync {
+    private final Durability mode;
+    private volatile FileChannel[] channels;
+
+    private long written;
+    private long synced;
+    private boolean syncing;
+    private boolean closed;
+
+    private long syncs;
+    private long syncedWrites;
+    private long totalNanos;
+    private long maxNanos;
+
+    FileSync(Durability mode, FileChannel... channels) {
+        this.mode = mode;
+        this.channels = channels;
+    }
+
+    /**
+     * отмечает очередную запись в файлы таблицы, вызывается сразу после записи, пока держится блокировка записи
+     *
+     * @return возвращает номер записи, который потом передается в {@link #commit(long)}
+     */
+    synchronized long written() {
+        return ++written;
+    }
+
+    /**
+     * в режиме GROUP_COMMIT ждет, пока запись с указанным номером окажется на диске.
+     * вызывается после освобождения блокировки записи, чтобы одновременные записи успели попасть в один сброс
+     *
+     * @param ticket номер записи, полученный от {@link #written()}
+     * @throws IOException
+     */
+    void commit(long ticket) throws IOException {
+        if (mode == Durability.GROUP_COMMIT)
+            sync(ticket);
+    }
+
+    /**
+     * сбрасывает на диск все сделанные к этому моменту записи, если они еще не сброшены
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        long target;
+        synchronized (this) {
+            target = written;
+        }
+        sync(target);
+    }
+
+    /**
+     * сбрасывает оставшиеся записи перед закрытием файлов, после этого ожидающие потоки сразу возвращаются
+     *
+     * @throws IOException
+     */
+    synchronized void close() throws IOException {
+        try {
+            while (syncing)
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (!closed && mode != Durability.NONE && synced < written)
+            force(written);
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * переключает сброс на другие файлы (новый сегмент таблицы): сначала сбрасывает записи, сделанные в старые файлы.
+     * номера записей и статистика сохраняются, ожидающие потоки дождутся сброса как обычно
+     *
+     * @param channels файлы таблицы, в которые теперь идет запись
+     * @throws IOException
+     */
+    synchronized void reattach(FileChannel... channels) throws IOException {
+        try {
+            while (syncing)
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (!closed && mode != Durability.NONE && synced < written) {
+            force(written);
+            notifyAll();
+        }
+        this.channels = channels;
+    }
+
+    synchronized SyncStats stats() {
+        return new SyncStats(syncs, syncedWrites, totalNanos, maxNanos);
+    }
+
+    private void sync(long ticket) throws IOException {
+        long target;
+        synchronized (this) {
+            try {
+                while (syncing && synced < ticket && !closed)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (synced >= ticket || closed)
+                return;
+            syncing = true;
+            target = written;
+        }
+
+        // ведущий поток сбрасывает на диск все записи до target, в том числе сделанные другими потоками
+        boolean done = false;
+        try {
+            doForce();
+            done = true;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (done)
+                    recordSync(target);
+                notifyAll();
+            }
+        }
+    }
+
+    private void force(long target) throws IOException {
+        doForce();
+        recordSync(target);
+    }
+
+    private void doForce() throws IOException {
+        long start = System.nanoTime();
+        for (FileChannel channel : channels) {
+            channel.force(false);
+        }
+        long nanos = System.nanoTime() - start;
+        synchronized (this) {
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+    }
+
+    private synchronized void recordSync(long target) {
+        if (target <= synced)
+            return;
+        syncs++;
+        syncedWrites += target - synced;
+        synced = target;
+    }
+}
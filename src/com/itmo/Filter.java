@@ -0,0 +1,196 @@
+package com.itmo;
+
+/**
+ * условие поиска по значениям сохраняемых полей, строится методами {@link Filters}:
+ * <pre>
+ *     db.findAll(Order.class, Filters.gt("price", 100).and(Filters.eq("status", "OPEN")));
+ * </pre>
+ * в отличие от Predicate, фильтр проверяется по байтам записи в файле, и объект создается только для подходящей записи.
+ * фильтр ссылается на поле по имени, имя и тип значения проверяются при поиске: неизвестное поле
+ * или значение неподходящего типа дают IllegalArgumentException
+ */
+public abstract class Filter {
+
+    Filter() {
+    }
+
+    /**
+     * @return фильтр, которому подходят записи, подходящие под оба фильтра
+     */
+    public Filter and(Filter other) {
+        Filter left = this;
+        return new Filter() {
+            @Override
+            RecordFilter.Condition bind(RecordFilter record) {
+                RecordFilter.Condition first = left.bind(record);
+                RecordFilter.Condition second = other.bind(record);
+                return () -> first.test() && second.test();
+            }
+
+            @Override
+            public String toString() {
+                return "(" + left + " and " + other + ")";
+            }
+        };
+    }
+
+    /**
+     * @return фильтр, которому подходят записи, подходящие хотя бы под один из фильтров
+     */
+    public Filter or(Filter other) {
+        Filter left = this;
+        return new Filter() {
+            @Override
+            RecordFilter.Condition bind(RecordFilter record) {
+                RecordFilter.Condition first = left.bind(record);
+                RecordFilter.Condition second = other.bind(record);
+                return () -> first.test() || second.test();
+            }
+
+            @Override
+            public String toString() {
+                return "(" + left + " or " + other + ")";
+            }
+        };
+    }
+
+    /**
+     * @return фильтр, которому подходят записи, не подходящие под этот
+     */
+    public Filter negate() {
+        Filter filter = this;
+        return new Filter() {
+            @Override
+            RecordFilter.Condition bind(RecordFilter record) {
+                RecordFilter.Condition condition = filter.bind(record);
+                return () -> !condition.test();
+            }
+
+            @Override
+            public String toString() {
+                return "not " + filter;
+            }
+        };
+    }
+
+    /**
+     * собирает условие под расположение полей таблицы
+     *
+     * @param record собираемый фильтр таблицы, в нем отмечаются нужные поля
+     * @return условие над значениями полей текущей записи
+     */
+    abstract RecordFilter.Condition bind(RecordFilter record);
+
+    /**
+     * сравнение поля со значением
+     */
+    static class Comparison extends Filter {
+        enum Op {
+            EQ("="), NE("!="), GT(">"), GE(">="), LT("<"), LE("<=");
+
+            final String symbol;
+
+            Op(String symbol) {
+                this.symbol = symbol;
+            }
+
+            /**
+             * @param compare результат сравнения значения поля со значением фильтра
+             */
+            boolean matches(int compare) {
+                switch (this) {
+                    case EQ:
+                        return compare == 0;
+                    case NE:
+                        return compare != 0;
+                    case GT:
+                        return compare > 0;
+                    case GE:
+                        return compare >= 0;
+                    case LT:
+                        return compare < 0;
+                    default:
+                        return compare <= 0;
+                }
+            }
+
+            /**
+             * сравнивает дробные значения операторами Java: -0.0 равно 0.0, NaN не равно ничему,
+             * в том числе себе, и не больше и не меньше ни одного числа
+             */
+            boolean matches(double value, double expected) {
+                switch (this) {
+                    case EQ:
+                        return value == expected;
+                    case NE:
+                        return value != expected;
+                    case GT:
+                        return value > expected;
+                    case GE:
+                        return value >= expected;
+                    case LT:
+                        return value < expected;
+                    default:
+                        return value <= expected;
+                }
+            }
+        }
+
+        private final String field;
+        private final Op op;
+        private final Object value;
+
+        Comparison(String field, Op op, Object value) {
+            if (field == null || value == null)
+                throw new IllegalArgumentException("Field and value of a filter must not be null");
+            this.field = field;
+            this.op = op;
+            this.value = value;
+        }
+
+        @Override
+        RecordFilter.Condition bind(RecordFilter record) {
+            int index = record.require(field);
+            Class<?> type = record.fieldType(index);
+            if (type == String.class) {
+                if (!(value instanceof String))
+                    throw mismatch(type);
+                String expected = (String) value;
+                byte[] bytes = expected.getBytes();
+                // равенство проверяется по байтам, строка из записи не создается.
+                // строку, которую кодировка не передает без потерь, приходится сравнивать после разбора
+                if ((op == Op.EQ || op == Op.NE) && new String(bytes).equals(expected)) {
+                    boolean equal = op == Op.EQ;
+                    return () -> record.bytesEqual(index, bytes) == equal;
+                }
+                return () -> op.matches(record.string(index).compareTo(expected));
+            }
+            if (type == boolean.class) {
+                if (!(value instanceof Boolean) || (op != Op.EQ && op != Op.NE))
+                    throw mismatch(type);
+                long expected = (Boolean) value ? 1 : 0;
+                boolean equal = op == Op.EQ;
+                return () -> (record.longs[index] == expected) == equal;
+            }
+            boolean integral = value instanceof Byte || value instanceof Short || value instanceof Integer || value instanceof Long;
+            if (!integral && !(value instanceof Float || value instanceof Double))
+                throw mismatch(type);
+            if (integral && (type == int.class || type == long.class)) {
+                long expected = ((Number) value).longValue();
+                return () -> op.matches(Long.compare(record.longs[index], expected));
+            }
+            double expected = ((Number) value).doubleValue();
+            return () -> op.matches(record.doubleValue(index), expected);
+        }
+
+        private IllegalArgumentException mismatch(Class<?> type) {
+            return new IllegalArgumentException("Can not compare field " + field + " of type " + type.getName()
+                    + " with " + value.getClass().getName() + " using " + op.symbol);
+        }
+
+        @Override
+        public String toString() {
+            return field + " " + op.symbol + " " + value;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.itmo;
+
+/**
+ * фабрика фильтров для {@link KVDataBase#findAll(Class, Filter)} и {@link KVDataBase#findFirst(Class, Filter)}.
+ * числовые поля сравниваются с любым числом, строковые - со строкой, логические - только на равенство.
+ * дробные значения сравниваются как операторами Java: eq("x", 0.0) подходит и для -0.0, а NaN подходит только под ne
+ */
+public final class Filters {
+
+    private Filters() {
+    }
+
+    /**
+     * @return фильтр "значение поля равно value"
+     */
+    public static Filter eq(String field, Object value) {
+        return new Filter.Comparison(field, Filter.Comparison.Op.EQ, value);
+    }
+
+    /**
+     * @return фильтр "значение поля не равно value"
+     */
+    public static Filter ne(String field, Object value) {
+        return new Filter.Comparison(field, Filter.Comparison.Op.NE, value);
+    }
+
+    /**
+     * @return фильтр "значение поля больше value"
+     */
+    public static Filter gt(String field, Object value) {
+        return new Filter.Comparison(field, Filter.Comparison.Op.GT, value);
+    }
+
+    /**
+     * @return фильтр "значение поля больше или равно value"
+     */
+    public static Filter ge(String field, Object value) {
+        return new Filter.Comparison(field, Filter.Comparison.Op.GE, value);
+    }
+
+    /**
+     * @return фильтр "значение поля меньше value"
+     */
+    public static Filter lt(String field, Object value) {
+        return new Filter.Comparison(field, Filter.Comparison.Op.LT, value);
+    }
+
+    /**
+     * @return фильтр "значение поля меньше или равно value"
+     */
+    public static Filter le(String field, Object value) {
+        return new Filter.Comparison(field, Filter.Comparison.Op.LE, value);
+    }
+
+    /**
+     * @return фильтр, которому подходят записи, не подходящие под filter
+     */
+    public static Filter not(Filter filter) {
+        return filter.negate();
+    }
+}
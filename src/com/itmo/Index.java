@@ -0,0 +1,17 @@
+package com.itmo;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * помечает поле, по значению которого строится вторичный индекс 'значение поля - ключи'.
+ * поиск по такому полю выполняется методом {@link KVDataBase#findBy(Class, String, Object)}.
+ * индекс числовых полей (int, long, float, double) упорядочен по значению, по нему работает
+ * {@link KVDataBase#findRange(Class, String, Object, Object)}
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Index {
+}
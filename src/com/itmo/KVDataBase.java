@@ -4,34 +4,64 @@ import com.itmo.exceptions.EndOfFileException;
 import com.itmo.exceptions.KeyNotFoundException;
 import com.itmo.exceptions.ObjectDataNotFound;
 
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.*;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 public class KVDataBase {
-    private static Map<Class<?>, List<Object>> cache = new HashMap<>();
     private static final Map<String, KVDataBase> instances = new HashMap<>();
     private static final Map<String, Integer> instancesCount = new HashMap<>();
     private String mainDirectory;
     private final String extension = ".kvdb";
-    private HashMap<Path, HashMap<Integer, Long>> keys;
-    private HashMap<Path, RandomAccessFile> filesInDirectory;
-    private ReadWriteLock lock;
-    private Semaphore semaphore;
-
-    private final Map<Class<?>, DbDescriptor> descriptors = new HashMap<>();
+    private static final int KEY_ENTRY_SIZE = Integer.BYTES + Long.BYTES;
+    // блок чтения одной записи по смещению, длинные записи дочитываются следующими блоками
+    private static final int RECORD_BLOCK_SIZE = 512;
+    // у каждого потока свой блок для чтения записей по смещению, переиспользуется между чтениями
+    private static final ThreadLocal<BlockReader> recordReaders =
+            ThreadLocal.withInitial(() -> new BlockReader(RECORD_BLOCK_SIZE));
+    // то же для таблиц, читаемых через отображение в память
+    private static final ThreadLocal<MappedDataFile.Input> mappedReaders = ThreadLocal.withInitial(MappedDataFile.Input::new);
+    // буфер кодирования записей для таблицы в памяти в режиме записи в фоне
+    private static final ThreadLocal<RecordBuffer> encodeBuffers = ThreadLocal.withInitial(RecordBuffer::new);
+    private ConcurrentHashMap<Path, KeyOffsetIndex> keys;
+    private ConcurrentHashMap<Path, RandomAccessFile> filesInDirectory;
+    private DbOptions options;
+    private ScheduledExecutorService syncScheduler;
+    private ExecutorService compactionExecutor;
+    private ScheduledExecutorService flushScheduler;
+    // записей, дописанных в таблицу между проверками, не пора ли ее сжимать
+    private static final int COMPACTION_CHECK_INTERVAL = 1024;
+    // хвост файла с ключами, который догоняется уже под блокировкой таблицы
+    private static final long LOCKED_CATCH_UP_BYTES = 64 * 1024;
+
+    // шарды таблицы по типу объектов, без шардирования - один дескриптор
+    private final Map<Class<?>, DbDescriptor[]> descriptors = new ConcurrentHashMap<>();
+    // таблицы создаются под своей блокировкой, чтобы загрузка индекса одной таблицы не задерживала другие
+    private final Map<Class<?>, Object> descriptorLocks = new ConcurrentHashMap<>();
+    // загрузка индексов, начатая при открытии базы
+    private final Map<Path, CompletableFuture<KeyOffsetIndex>> indexLoads = new ConcurrentHashMap<>();
+    private final Map<Path, Long> indexLoadMillis = new ConcurrentHashMap<>();
 
     private KVDataBase() {
-        keys = new HashMap<>();
-        filesInDirectory = new HashMap<>();
-        lock = new ReentrantReadWriteLock();
-        semaphore = new Semaphore(10);
+        keys = new ConcurrentHashMap<>();
+        filesInDirectory = new ConcurrentHashMap<>();
     }
 
     /**
@@ -43,23 +73,37 @@ public class KVDataBase {
      * @return возвращает новый обект KVDataBase
      */
     public static KVDataBase open(String directoryPath) {
+        return open(directoryPath, new DbOptions());
+    }
+
+    /**
+     * то же, что {@link #open(String)}, но с заданными настройками.
+     * настройки применяются только если директория еще не открыта
+     *
+     * @param directoryPath путь к директории с файлами
+     * @param options       настройки базы данных
+     * @return возвращает новый обект KVDataBase
+     */
+    public static KVDataBase open(String directoryPath, DbOptions options) {
         KVDataBase dataBase = KVDataBase.instances.get(directoryPath);
         if (dataBase == null) {
-            System.out.println("Database opening, please stand by...");
             dataBase = new KVDataBase();
             dataBase.mainDirectory = directoryPath;
+            dataBase.options = options;
             File directory = new File(dataBase.mainDirectory);
             if (!directory.exists())
                 directory.mkdir();
 
             try {
-                dataBase.openAllFiles();
-                dataBase.readKeyFiles();
+                dataBase.startIndexLoading();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
+            if (options.durability == Durability.PERIODIC)
+                dataBase.startPeriodicSync();
+            if (options.writeBehindBytes > 0)
+                dataBase.startBackgroundFlush();
 
-            System.out.println("Database ready.");
             instances.put(directoryPath, dataBase);
         }
         if (!instancesCount.containsKey(directoryPath)) {
@@ -71,18 +115,32 @@ public class KVDataBase {
     }
 
     /**
-     * открывает все файлы, находящиеся в директории на запись/чтение
+     * находит в директории файлы с ключами и запускает их чтение в фоновых потоках, по таблице на поток.
+     * база доступна сразу, первое обращение к таблице ждет только загрузки ее собственного индекса
      *
      * @throws IOException
      */
-    private void openAllFiles() throws IOException {
-        RandomAccessFile raf;
-        try (DirectoryStream<Path> directory = Files.newDirectoryStream(Paths.get(mainDirectory))) {
+    private void startIndexLoading() throws IOException {
+        List<Path> keyFiles = new ArrayList<>();
+        try (DirectoryStream<Path> directory = Files.newDirectoryStream(Paths.get(mainDirectory), "*Keys" + extension)) {
             for (Path file : directory) {
-                raf = new RandomAccessFile(file.toFile(), "rw");
-                filesInDirectory.put(file, raf);
+                keyFiles.add(file);
             }
         }
+        if (keyFiles.isEmpty())
+            return;
+
+        int threads = Math.min(keyFiles.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService loader = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "kvdb-load-" + mainDirectory);
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Path keyFile : keyFiles) {
+            indexLoads.put(keyFile, CompletableFuture.supplyAsync(() -> loadKeyIndex(keyFile), loader));
+        }
+        // потоки завершатся, когда все индексы будут прочитаны
+        loader.shutdown();
     }
 
     public static void close(String directoryPath) {
@@ -96,14 +154,50 @@ public class KVDataBase {
             return;
         }
 
+        if (db.flushScheduler != null) {
+            // текущий сброс дописывается, оставшиеся изменения сбрасываются ниже
+            db.flushScheduler.shutdown();
+            try {
+                db.flushScheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            db.flushAll();
+        }
+        if (db.syncScheduler != null)
+            db.syncScheduler.shutdownNow();
+        if (db.compactionExecutor != null) {
+            // прерванное сжатие оставляет старые файлы нетронутыми
+            db.compactionExecutor.shutdownNow();
+            try {
+                db.compactionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
         try {
             // закрыть все ридеры
-            for (DbDescriptor descriptor : db.descriptors.values()) {
-                for (int i = 0; i < descriptor.readers.length; i++) {
-                    descriptor.readers[i].getReader().close();
+            for (DbDescriptor[] shards : db.descriptors.values()) {
+                for (DbDescriptor descriptor : shards) {
+                    if (db.options.jmx)
+                        db.unregisterMXBean(descriptor);
+                    descriptor.sync.close();
+                    KeyOffsetIndex index = db.keys.get(descriptor.keyFilePath);
+                    if (index != null)
+                        index.close(descriptor.keyFileWriter.length());
+                    for (Segment segment : descriptor.segments) {
+                        if (segment != null)
+                            segment.close();
+                    }
                 }
             }
 
+            // индексы, загруженные при открытии, но не понадобившиеся
+            for (Map.Entry<Path, CompletableFuture<KeyOffsetIndex>> load : db.indexLoads.entrySet()) {
+                load.getValue().join().close(Files.size(load.getKey()));
+            }
+
             for (RandomAccessFile file : db.filesInDirectory.values()) {
                 file.close();
             }
@@ -114,462 +208,1424 @@ public class KVDataBase {
         instancesCount.remove(db.mainDirectory);
     }
 
+    private void unregisterMXBean(DbDescriptor descriptor) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mxBeanName(descriptor));
+        } catch (InstanceNotFoundException e) {
+            // уже снят
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
-     * просматривает имена файлов и сохраняет их в мапу со статусом перезаписи (true/false)
-     * читает данные из файлов с ключами, сохраняет их в мапу 'путь - мапа ключей'
+     * запускает фоновый поток, который периодически сбрасывает на диск файлы всех таблиц
      */
-    private void readKeyFiles() throws IOException {
-        HashMap<Integer, Long> keyOffsetMap;
-
-        for (Map.Entry<Path, RandomAccessFile> entry : filesInDirectory.entrySet()) {
-            if (entry.getKey().toString().contains("Keys")) {
-                keyOffsetMap = readKeysAndOffsetsFromFile(entry.getValue());
-                keys.put(entry.getKey(), keyOffsetMap);
-            }
-        }
+    private void startPeriodicSync() {
+        syncScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kvdb-sync-" + mainDirectory);
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = options.syncIntervalMillis;
+        syncScheduler.scheduleWithFixedDelay(this::syncAll, interval, interval, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * читает значения ключей и смещений из файла
-     *
-     * @param reader читает значения из файла с ключами
-     * @return возвращает мапу 'ключ - смещение'
-     * @throws IOException
+     * запускает фоновый поток, который пишет в файлы изменения, накопленные в памяти в режиме записи в фоне:
+     * периодически и по запросу таблицы, заполненной наполовину
      */
-    private HashMap<Integer, Long> readKeysAndOffsetsFromFile(RandomAccessFile reader) throws IOException {
-        HashMap<Integer, Long> keyOffsetMap = new HashMap<>();
-        byte[] buffer = new byte[Integer.BYTES + Long.BYTES];
-        byte[] valueInBytes;
-        int key;
-        long offset;
+    private void startBackgroundFlush() {
+        flushScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kvdb-flush-" + mainDirectory);
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = options.flushIntervalMillis;
+        flushScheduler.scheduleWithFixedDelay(this::flushAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
 
-        while (reader.read(buffer) > 0) {
-            System.arraycopy(buffer, 0, valueInBytes = new byte[Integer.BYTES], 0, Integer.BYTES);
-            key = ByteBuffer.wrap(valueInBytes).getInt();
-            System.arraycopy(buffer, Integer.BYTES, valueInBytes = new byte[Long.BYTES], 0, Long.BYTES);
-            offset = ByteBuffer.wrap(valueInBytes).getLong();
-            keyOffsetMap.put(key, offset);
+    private void flushAll() {
+        for (DbDescriptor[] shards : descriptors.values()) {
+            for (DbDescriptor descriptor : shards) {
+                flushInBackground(descriptor);
+            }
         }
-
-        return keyOffsetMap;
     }
 
-    /**
-     * добавляет объект в базу данных: сохраняет значение его полей в файл
-     * сохраняет его смещение по ключу в файле с ключами
-     *
-     * @param key    ключ для дальнейшего поиска объекта
-     * @param object объект, который надо добавить в базу данных
-     */
-    public void add(int key, Object object) {
-        Class<?> type = object.getClass();
+    private void flushInBackground(DbDescriptor descriptor) {
         try {
-            DbDescriptor descriptor = getDbDescriptor(type);
-            doUpdate(descriptor, key, object);
-        } catch (IOException | IllegalAccessException | InterruptedException e) {
-            throw new RuntimeException(e);
+            flushMemtable(descriptor);
+        } catch (IOException | RuntimeException e) {
+            // изменения остаются в памяти, сброс повторится, а ошибку до тех пор получают записи таблицы
         }
     }
 
-    private void doUpdate(DbDescriptor descriptor, int key, Object object) throws IOException, IllegalAccessException, InterruptedException {
-        long offset;
+    /**
+     * пишет изменения таблицы, накопленные в памяти, в ее файлы одним пакетом в порядке ключей.
+     * пока пакет пишется, его изменения видны читателям в памяти, после публикации в индексе - в файлах
+     *
+     * @param descriptor дескриптор таблицы
+     * @throws IOException
+     */
+    private void flushMemtable(DbDescriptor descriptor) throws IOException {
+        Memtable memtable = descriptor.memtable;
+        if (memtable == null || memtable.isEmpty())
+            return;
+        memtable.flushLock.lock();
         try {
-            lock.writeLock().lock();
-            offset = writeObjectToFile(object, descriptor);
-            writeKeyToFile(key, offset, descriptor);
+            Map<Integer, byte[]> records = memtable.beginFlush();
+            try {
+                if (!records.isEmpty()) {
+                    // объекты нужны только для значений вторичных индексов
+                    boolean decode = !descriptor.secondaryIndexes.isEmpty();
+                    List<WriteBatch.Operation> operations = new ArrayList<>(records.size());
+                    for (Map.Entry<Integer, byte[]> entry : records.entrySet()) {
+                        byte[] record = entry.getValue();
+                        if (record == Memtable.REMOVED)
+                            operations.add(new WriteBatch.Operation(entry.getKey(), null));
+                        else
+                            operations.add(new WriteBatch.Operation(entry.getKey(),
+                                    decode ? decodeRecord(record, descriptor) : null, record));
+                    }
+                    writeShardBatches(Collections.singletonMap(descriptor, operations));
+                }
+            } catch (Throwable e) {
+                memtable.abortFlush(e);
+                throw e;
+            }
+            memtable.endFlush();
         } finally {
-            lock.writeLock().unlock();
+            memtable.flushLock.unlock();
         }
     }
 
     /**
-     * возвращает дескриптор класса объекта
-     * открывает файлы, нужные для сохранения или чтения данных для объектов данного класса
+     * сбрасывает изменения шардов таблицы из памяти перед просмотром, пакетом изменений или сжатием
      *
-     * @param clazz класс объекта, для которого нужно получить дескриптор
-     * @return
-     * @throws FileNotFoundException
+     * @param shards шарды таблицы
+     * @return эти же шарды
+     * @throws IOException
      */
-    private DbDescriptor getDbDescriptor(Class<?> clazz) throws FileNotFoundException {
-        if (!descriptors.containsKey(clazz)) {
-            Field[] fields = clazz.getDeclaredFields();
-            Path filePath = Paths.get(mainDirectory + "\\" + clazz.getSimpleName() + extension);
-            Path keyFilePath = Paths.get(mainDirectory + "\\" + clazz.getSimpleName() + "Keys" + extension);
+    private DbDescriptor[] flushMemtables(DbDescriptor[] shards) throws IOException {
+        for (DbDescriptor descriptor : shards) {
+            flushMemtable(descriptor);
+        }
+        return shards;
+    }
 
-            RandomAccessFile writer = filesInDirectory.get(filePath);
-            if (writer == null) {
-                writer = new RandomAccessFile(filePath.toFile(), "rw");
-                filesInDirectory.put(filePath, writer);
-            }
-            RandomAccessFile keyWriter = filesInDirectory.get(keyFilePath);
-            if (keyWriter == null) {
-                keyWriter = new RandomAccessFile(keyFilePath.toFile(), "rw");
-                filesInDirectory.put(keyFilePath, keyWriter);
-            }
+    private static byte[] encodeRecord(Object object, DbDescriptor descriptor) throws IOException {
+        RecordBuffer buffer = encodeBuffers.get();
+        buffer.reset();
+        descriptor.codec.write(object, buffer.out);
+        return Arrays.copyOf(buffer.array(), buffer.size());
+    }
 
-            List<Field> flds = new ArrayList<>();
+    private static Object decodeRecord(byte[] record, DbDescriptor descriptor) throws IOException {
+        return descriptor.codec.read(new DataInputStream(new ByteArrayInputStream(record)));
+    }
 
-            for (Field fld : fields) {
-                if (fld.getAnnotation(Exclude.class) == null) {
-                    fld.setAccessible(true);
-                    flds.add(fld);
+    private void syncAll() {
+        for (DbDescriptor[] shards : descriptors.values()) {
+            for (DbDescriptor descriptor : shards) {
+                try {
+                    descriptor.sync.flush();
+                } catch (IOException e) {
+                    // файлы таблицы могли быть закрыты при переписывании, они сброшены перед закрытием
                 }
             }
-
-            descriptors.put(clazz,
-                    new DbDescriptor(filePath, writer, keyFilePath, keyWriter, flds.toArray(new Field[flds.size()])));
         }
-
-        return descriptors.get(clazz);
     }
 
     /**
-     * сохраняет значения ключа и смещения в памяти
-     * записывает ключ и смещение в файле с полями объекта по этому ключу, с которого началась запись этих полей
+     * возвращает статистику сбросов на диск (fsync) для таблицы: количество, длительность, сколько записей покрывает один сброс.
+     * для шардированной таблицы - сумма по всем шардам
      *
-     * @param key        значение ключа, которое надо сохранить в файл
-     * @param offset     смещение по этому ключу
-     * @param descriptor дескриптор сохраняемого объекта, содержит пути к файлам с данными и ключами
-     *                   и объекты для работы с этими файлами (запись/чтение)
-     * @throws IOException
+     * @param type тип объектов таблицы
+     * @return статистика сбросов
      */
-    private void writeKeyToFile(int key, long offset, DbDescriptor descriptor) throws IOException {
-        writeKeyToMemory(key, offset, descriptor.keyFilePath);
-
-        byte[] buffer = new byte[Integer.BYTES + Long.BYTES];
-        byte[] keyBytes = ByteBuffer.allocate(Integer.BYTES).putInt(key).array();
-        byte[] offsetBytes = ByteBuffer.allocate(Long.BYTES).putLong(offset).array();
-        System.arraycopy(keyBytes, 0, buffer, 0, keyBytes.length);
-        System.arraycopy(offsetBytes, 0, buffer, keyBytes.length, offsetBytes.length);
-        RandomAccessFile writer = descriptor.keyFileWriter;
-        writer.seek(writer.length());
-        writer.write(buffer);
+    public SyncStats getSyncStats(Class<?> type) {
+        try {
+            SyncStats stats = null;
+            for (DbDescriptor descriptor : getDbDescriptors(type)) {
+                stats = stats == null ? descriptor.sync.stats() : stats.merge(descriptor.sync.stats());
+            }
+            return stats;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
-     * сохраняет значения ключа и смещения в файле с полями в мапу keys,
-     * которая хранит имя файла, в котором находятся значения, в качестве ключа для получения этих значений
+     * возвращает индекс 'ключ - смещение' таблицы: дожидается фоновой загрузки, начатой при открытии базы,
+     * или читает файл с ключами сам, если загрузка не начиналась
      *
-     * @param key         ключ, который сохраняется в файл
-     * @param offset      смещение по этому ключу
-     * @param keyFilePath имя файла, в котором будут храниться значения ключа и смещения
+     * @param keyFilePath файл с ключами таблицы
+     * @return индекс или null, если у таблицы еще нет ключей
      */
-    private void writeKeyToMemory(int key, long offset, Path keyFilePath) {
-        HashMap<Integer, Long> map = keys.get(keyFilePath);
-        if (map == null) {
-            map = new HashMap<>();
+    private KeyOffsetIndex awaitKeyIndex(Path keyFilePath) {
+        CompletableFuture<KeyOffsetIndex> load = indexLoads.remove(keyFilePath);
+        if (load != null) {
+            try {
+                return load.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
         }
-        map.put(key, offset);
-        keys.put(keyFilePath, map);
+        return Files.exists(keyFilePath) ? loadKeyIndex(keyFilePath) : null;
     }
 
     /**
-     * считает смещение в файле, с которого начнется запись полей объекта
-     * просматривает поля объекта и, если поле не помечено аннотацией @Exclude, сохраняет его в файл
+     * читает файл с ключами большими блоками и строит по нему индекс, время загрузки сохраняется для статистики
      *
-     * @param object     объект, который нужно сохранить в файл
-     * @param descriptor дескриптор сохраняемого объекта, содержит пути к файлам с данными и ключами
-     *                   и объекты для работы с этими файлами (запись/чтение)
-     * @return возвращает смещение, с которого началась запись в файл
-     * @throws IllegalAccessException
-     * @throws IOException
+     * @param keyFilePath файл с ключами таблицы
+     * @return возвращает индекс 'ключ - смещение'
      */
-    private long writeObjectToFile(Object object, DbDescriptor descriptor) throws IllegalAccessException, IOException {
-        File file = new File(descriptor.filePath.toString());
-        RandomAccessFile writer = descriptor.dbFileWriter;
-        long offset = file.length();
-
-        List<byte[]> fieldsInBytes = new ArrayList();
-        byte[] buffer;
-        int capacity = 0;
-        int position = 0;
-
-        for (Field field : descriptor.fields) {
-            buffer = convertFieldToBytes(field.getType(), field.get(object));
-            capacity += buffer.length;
-            fieldsInBytes.add(buffer);
+    private KeyOffsetIndex loadKeyIndex(Path keyFilePath) {
+        long start = System.nanoTime();
+        KeyOffsetIndex index;
+        try {
+            if (options.mappedIndex) {
+                index = MappedKeyIndex.open(mappedIndexPath(keyFilePath), keyFilePath);
+            } else {
+                try (FileChannel channel = FileChannel.open(keyFilePath, StandardOpenOption.READ)) {
+                    index = readKeysAndOffsetsFromFile(channel);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        indexLoadMillis.put(keyFilePath, millis);
+        return index;
+    }
 
-        buffer = new byte[capacity];
-        for (byte[] field : fieldsInBytes) {
-            System.arraycopy(field, 0, buffer, position, field.length);
-            position += field.length;
+    /**
+     * создает пустой индекс 'ключ - смещение': в куче или, если включено в настройках, в отображенном файле
+     *
+     * @param keyFilePath  файл с ключами таблицы
+     * @param suffix       суффикс имени файла индекса, для индекса, который строит сжатие
+     * @param expectedKeys ожидаемое количество ключей
+     * @return пустой индекс
+     */
+    private KeyOffsetIndex newKeyIndex(Path keyFilePath, String suffix, int expectedKeys) {
+        if (!options.mappedIndex)
+            return new StripedKeyIndex(expectedKeys);
+        try {
+            return MappedKeyIndex.create(Paths.get(mappedIndexPath(keyFilePath) + suffix), expectedKeys);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
+    }
 
-        writer.seek(offset);
-        writer.write(buffer);
-
-        return offset;
+    /**
+     * @return путь к файлу индекса в отображаемом формате: Type.kvhx для TypeKeys.kvdb
+     */
+    private Path mappedIndexPath(Path keyFilePath) {
+        String name = keyFilePath.getFileName().toString();
+        return keyFilePath.resolveSibling(name.substring(0, name.length() - ("Keys" + extension).length()) + ".kvhx");
     }
 
     /**
-     * преобразует значение поля в массив байт
+     * читает значения ключей и смещений из файла блоками по 65536 записей (768 КБ), не создавая объектов на каждую запись.
+     * недописанная последняя запись пропускается
      *
-     * @param type       тип поля для преобразования
-     * @param fieldValue значение преобразуемого поля
-     * @return возвращает массив байт полученный при преобразовании
+     * @param channel канал файла с ключами
+     * @return возвращает индекс 'ключ - смещение'
+     * @throws IOException
      */
-    private byte[] convertFieldToBytes(Class<?> type, Object fieldValue) {
-        byte[] buffer = null;
-
-        switch (type.toString()) {
-            case "boolean":
-                buffer = ByteBuffer.allocate(Byte.BYTES).put((byte) ((boolean) fieldValue ? 1 : 0)).array();
-                break;
-            case "int":
-                buffer = ByteBuffer.allocate(Integer.BYTES).putInt((int) fieldValue).array();
-                break;
-            case "long":
-                buffer = ByteBuffer.allocate(Long.BYTES).putLong((long) fieldValue).array();
-                break;
-            case "float":
-                buffer = ByteBuffer.allocate(Float.BYTES).putFloat((float) fieldValue).array();
-                break;
-            case "double":
-                buffer = ByteBuffer.allocate(Double.BYTES).putDouble((double) fieldValue).array();
-                break;
-            case "class java.lang.String":
-                byte[] strBytes = ((String) fieldValue).getBytes();
-                byte[] strLen = ByteBuffer.allocate(Integer.BYTES).putInt(strBytes.length).array();
-                buffer = new byte[strBytes.length + strLen.length];
-                System.arraycopy(strLen, 0, buffer, 0, strLen.length);
-                System.arraycopy(strBytes, 0, buffer, strLen.length, strBytes.length);
+    private StripedKeyIndex readKeysAndOffsetsFromFile(FileChannel channel) throws IOException {
+        StripedKeyIndex keyOffsetMap = new StripedKeyIndex((int) (channel.size() / KEY_ENTRY_SIZE));
+        ByteBuffer buffer = ByteBuffer.allocate(KEY_ENTRY_SIZE * (1 << 16));
+        long size = channel.size() / KEY_ENTRY_SIZE * KEY_ENTRY_SIZE;
+        long position = 0;
+
+        while (position < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - position));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    break;
+            }
+            buffer.flip();
+            if (buffer.remaining() < KEY_ENTRY_SIZE)
                 break;
+            while (buffer.remaining() >= KEY_ENTRY_SIZE) {
+                keyOffsetMap.put(buffer.getInt(), buffer.getLong());
+            }
+            position += buffer.limit();
         }
-        return buffer;
+
+        return keyOffsetMap;
     }
 
     /**
-     * читает поля объекта из файла, строит объект нужного типа 'Т' и возвращает его пользователю
+     * возвращает время загрузки индекса ключей таблицы при открытии базы
      *
-     * @param key  ключ объекта, по которому производится поиск значений полей объекта в файле
-     * @param type тип объекта, который нужно вернуть
-     * @param <T>
-     * @return возвращает объект типа 'T' с заполненныйми полями или null, если нет объекта с таким ключем
+     * @param type тип объектов таблицы
+     * @return время загрузки в миллисекундах или -1, если у таблицы не было файла с ключами.
+     * шарды загружаются параллельно, для шардированной таблицы возвращается время самого долгого
      */
-    public <T> T getByKey(int key, Class<T> type) {
-        Object object;
+    public long getIndexLoadMillis(Class<?> type) {
         try {
-            semaphore.acquire();
-            lock.readLock().lock();
-
-            DbDescriptor descriptor = getDbDescriptor(type);
-
-            long offset = getOffset(key, descriptor.keyFilePath);
-            if (offset < 0)
-                return null;
-
-            object = readObjectByOffset(type, offset, descriptor);
-        } catch (InstantiationException | IllegalAccessException | InterruptedException | IOException e) {
+            long millis = -1;
+            for (DbDescriptor descriptor : getDbDescriptors(type)) {
+                millis = Math.max(millis, indexLoadMillis.getOrDefault(descriptor.keyFilePath, -1L));
+            }
+            return millis;
+        } catch (IOException e) {
             throw new RuntimeException(e);
-        } finally {
-            lock.readLock().unlock();
-            semaphore.release();
         }
-
-        return (T) object;
     }
 
     /**
-     * возвращает объект, который соответствует некоторому критерию
+     * добавляет объект в базу данных: сохраняет значение его полей в файл
+     * сохраняет его смещение по ключу в файле с ключами
      *
-     * @param <T>
-     * @return
+     * @param key    ключ для дальнейшего поиска объекта
+     * @param object объект, который надо добавить в базу данных
      */
-
-    public <T> T findFirst(Class<T> type, Predicate<T> predicate) {
-        Object object = null;
-        DbDescriptor descriptor = null;
-        Reader reader = null;
-
+    public void add(int key, Object object) {
+        long start = System.nanoTime();
+        Class<?> type = object.getClass();
         try {
-            semaphore.acquire();
-            lock.readLock().lock();
-
-            descriptor = getDbDescriptor(type);
-            reader = descriptor.getReader();
-            RandomAccessFile raf = reader.getReader();
-
-            for (Long offset : keys.get(descriptor.keyFilePath).values()) {
-                if (offset < 0)
-                    continue;
-                raf.seek(offset);
-                object = readObjectFromFile(type, raf, descriptor);
-                if (predicate.test((T) object))
-                    break;
-            }
-            if (object == null)
-                return (T) object;
-            if (!predicate.test((T) object))
-                object = null;
-
-        } catch (IOException | IllegalAccessException | InstantiationException | InterruptedException e) {
+            DbDescriptor descriptor = getDbDescriptor(type, key);
+            if (descriptor.memtable != null)
+                descriptor.memtable.put(key, encodeRecord(object, descriptor));
+            else
+                doUpdate(descriptor, key, object);
+            descriptor.metrics.record(MetricsListener.Operation.ADD, start);
+        } catch (IOException | InterruptedException e) {
             throw new RuntimeException(e);
-        } finally {
-            if (descriptor != null)
-                descriptor.releaseReader(reader);
-            lock.readLock().unlock();
-            semaphore.release();
         }
-
-        return (T) object;
     }
 
-    private <T> T readObjectFromFile(Class<T> type, RandomAccessFile reader, DbDescriptor descriptor) throws IllegalAccessException, InstantiationException, IOException {
-        Object object;
+    private void doUpdate(DbDescriptor descriptor, int key, Object object) throws IOException, InterruptedException {
+        long offset;
+        long ticket;
+        descriptor.lockAppend();
         try {
-            object = type.newInstance();
-            for (Field field : descriptor.fields) {
-                field.set(object, readOneFieldFromFile(field.getType(), reader));
-            }
-        } catch (EndOfFileException e) {
-            return null;
+            offset = writeObjectToFile(object, descriptor);
+            writeKeyToFile(key, offset, descriptor);
+            indexObject(key, offset, object, descriptor);
+            ticket = descriptor.sync.written();
+            if (descriptor.recordCache != null)
+                descriptor.recordCache.invalidate(key);
+            // версия меняется после того, как смещение попало в индекс
+            descriptor.epoch++;
+            descriptor.keyEntries++;
+        } finally {
+            descriptor.appendLock.unlock();
         }
-        return (T) object;
+        descriptor.sync.commit(ticket);
+        maybeCompact(descriptor);
     }
 
-    private <T> List<T> searchInCache(Class<T> type, Predicate<T> predicate) {
-        if (cache.size() == 0) {
-            return null;
-        }
-
-        List<T> objects = (List<T>) cache.get(type);
-        if (objects == null)
-            return null;
+    /**
+     * создает пустой пакет изменений, который записывается в базу целиком методом {@link WriteBatch#commit()}
+     *
+     * @return возвращает новый пакет
+     */
+    public WriteBatch newBatch() {
+        return new WriteBatch(this);
+    }
 
-        List<T> retList = new ArrayList<>();
-        for (T object : objects) {
-            if (predicate.test(object))
-                retList.add(object);
+    /**
+     * записывает пакет изменений: данные каждой таблицы одной записью в файл с данными,
+     * ключи одной записью в файл с ключами. смещения попадают в индекс только после записи всех таблиц пакета,
+     * причем разом для всех таблиц, пока держатся их блокировки tableLock на запись
+     *
+     * @param operations изменения, сгруппированные по типу объектов
+     */
+    void writeBatch(Map<Class<?>, List<WriteBatch.Operation>> operations) {
+        // изменения шардированной таблицы раскладываются по шардам
+        Map<DbDescriptor, List<WriteBatch.Operation>> byShard = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<Class<?>, List<WriteBatch.Operation>> entry : operations.entrySet()) {
+                for (WriteBatch.Operation operation : entry.getValue()) {
+                    byShard.computeIfAbsent(getDbDescriptor(entry.getKey(), operation.key), d -> new ArrayList<>()).add(operation);
+                }
+            }
+            // изменения из памяти пишутся раньше пакета, иначе сброс затер бы более новые значения пакета
+            for (DbDescriptor descriptor : byShard.keySet()) {
+                flushMemtable(descriptor);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-
-        return retList;
+        writeShardBatches(byShard);
     }
 
-    public <T> List<T> findAll(Class<T> type, Predicate<T> predicate) {
-        List<T> list = searchInCache(type, predicate);
-        if (list != null) {
-            return list;
+    /**
+     * записывает изменения, уже разложенные по шардам, и публикует их в индексах разом для всех шардов
+     *
+     * @param byShard изменения каждого шарда в порядке добавления
+     */
+    private void writeShardBatches(Map<DbDescriptor, List<WriteBatch.Operation>> byShard) {
+        List<DbDescriptor> written = new ArrayList<>(byShard.keySet());
+        List<List<WriteBatch.Operation>> lists = new ArrayList<>(byShard.values());
+
+        // блокировки таблиц берутся всегда в одном порядке, чтобы пакеты с общими таблицами не ждали друг друга по кругу
+        List<DbDescriptor> lockOrder = new ArrayList<>(written);
+        lockOrder.sort(Comparator.comparing(descriptor -> descriptor.filePath.toString()));
+        long[] tickets = new long[written.size()];
+        for (DbDescriptor descriptor : lockOrder) {
+            descriptor.lockAppend();
         }
-
-        list = new ArrayList<>();
-        List<Object> cacheList = new ArrayList<>();
-        Object object;
-
-        DbDescriptor descriptor = null;
-        Reader reader = null;
         try {
-            semaphore.acquire();
-            lock.readLock().lock();
-
-            descriptor = getDbDescriptor(type);
-            reader = descriptor.getReader();
-            RandomAccessFile raf = reader.getReader();
-
-            for (Long offset : keys.get(descriptor.keyFilePath).values()) {
-                if (offset < 0)
-                    continue;
-                raf.seek(offset);
-                object = readObjectFromFile(type, raf, descriptor);
-                cacheList.add(object);
-                if (predicate.test((T) object))
-                    list.add((T) object);
+            List<long[]> offsets = new ArrayList<>();
+            for (int i = 0; i < written.size(); i++) {
+                offsets.add(appendBatch(written.get(i), lists.get(i)));
+                tickets[i] = written.get(i).sync.written();
             }
-            cache.put(type, cacheList);
 
-        } catch (IOException | IllegalAccessException | InstantiationException | InterruptedException e) {
+            for (DbDescriptor descriptor : lockOrder) {
+                descriptor.tableLock.writeLock().lock();
+            }
+            try {
+                for (int i = 0; i < written.size(); i++) {
+                    Path keyFilePath = written.get(i).keyFilePath;
+                    List<WriteBatch.Operation> list = lists.get(i);
+                    long[] batchOffsets = offsets.get(i);
+                    RecordCache recordCache = written.get(i).recordCache;
+                    for (int j = 0; j < batchOffsets.length; j++) {
+                        writeKeyToMemory(list.get(j).key, batchOffsets[j], keyFilePath);
+                        if (recordCache != null)
+                            recordCache.invalidate(list.get(j).key);
+                        for (SecondaryIndex secondaryIndex : written.get(i).secondaryIndexes.values()) {
+                            if (list.get(j).isRemove())
+                                secondaryIndex.remove(list.get(j).key);
+                            else
+                                secondaryIndex.put(list.get(j).key, batchOffsets[j],
+                                        written.get(i).codec.getField(list.get(j).object, secondaryIndex.fieldIndex));
+                        }
+                    }
+                    written.get(i).epoch++;
+                    written.get(i).keyEntries += batchOffsets.length;
+                }
+            } finally {
+                for (DbDescriptor descriptor : lockOrder) {
+                    descriptor.tableLock.writeLock().unlock();
+                }
+            }
+        } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
-            if (descriptor != null)
-                descriptor.releaseReader(reader);
-            lock.readLock().unlock();
-            semaphore.release();
+            for (DbDescriptor descriptor : lockOrder) {
+                descriptor.appendLock.unlock();
+            }
         }
 
-        return list.size() == 0 ? null : list;
+        try {
+            for (int i = 0; i < written.size(); i++) {
+                written.get(i).sync.commit(tickets[i]);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        for (DbDescriptor descriptor : written) {
+            maybeCompact(descriptor);
+        }
     }
 
     /**
-     * находит смещение в мапе по ключу
+     * дописывает изменения одной таблицы в конец ее файлов, не трогая индекс в памяти
      *
-     * @param key         ключ для которого надо найти смещение
-     * @param keyFilePath файл, в котором записаны данные (используется как ключ для мапы)
-     * @return возвращает значение смещения для заланного ключа или -1, если такого ключа нет в мапе
+     * @param descriptor дескриптор таблицы
+     * @param operations изменения таблицы в порядке добавления в пакет
+     * @return возвращает смещения записанных объектов (-1 для удалений) в том же порядке
+     * @throws IOException
      */
-    private long getOffset(int key, Path keyFilePath) {
-        try {
-            Long offset = keys.get(keyFilePath).get(key);
-            return offset == null ? -1 : offset;
-        } catch (NullPointerException e) {
-            throw new KeyNotFoundException(e.getMessage());
+    private long[] appendBatch(DbDescriptor descriptor, List<WriteBatch.Operation> operations) throws IOException {
+        maybeRollSegment(descriptor);
+        RandomAccessFile writer = descriptor.dbFileWriter;
+        int segmentId = descriptor.active.id;
+        long tail = descriptor.dataTail;
+        long[] offsets = new long[operations.size()];
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(data);
+        ByteBuffer keyEntries = ByteBuffer.allocate(operations.size() * KEY_ENTRY_SIZE);
+        for (int i = 0; i < offsets.length; i++) {
+            WriteBatch.Operation operation = operations.get(i);
+            if (operation.isRemove()) {
+                offsets[i] = -1;
+            } else {
+                offsets[i] = Segment.offset(segmentId, tail + data.size());
+                if (operation.record != null)
+                    out.write(operation.record);
+                else
+                    descriptor.codec.write(operation.object, out);
+            }
+            keyEntries.putInt(operation.key).putLong(offsets[i]);
+        }
+
+        if (data.size() > 0) {
+            writer.seek(tail);
+            writer.write(data.toByteArray());
+            descriptor.dataTail = tail + data.size();
+            descriptor.metrics.dataBytesWritten.add(data.size());
+            if (descriptor.active.mappedFile != null)
+                descriptor.active.mappedFile.extend(descriptor.dataTail);
+        }
+        RandomAccessFile keyWriter = descriptor.keyFileWriter;
+        keyWriter.seek(descriptor.keyTail);
+        keyWriter.write(keyEntries.array());
+        descriptor.keyTail += keyEntries.capacity();
+        descriptor.metrics.keyBytesWritten.add(keyEntries.capacity());
+
+        for (SecondaryIndex secondaryIndex : descriptor.secondaryIndexes.values()) {
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            DataOutputStream entriesOut = new DataOutputStream(entries);
+            for (int i = 0; i < offsets.length; i++) {
+                Object object = operations.get(i).object;
+                if (object != null)
+                    secondaryIndex.writeEntry(operations.get(i).key, offsets[i],
+                            descriptor.codec.getField(object, secondaryIndex.fieldIndex), entriesOut);
+            }
+            if (entries.size() > 0)
+                secondaryIndex.append(entries.toByteArray());
         }
+        return offsets;
     }
 
     /**
-     * читает значения полей из файла и устанавливает их переданным полям объекта
+     * возвращает дескриптор шарда таблицы, в котором хранится ключ
      *
-     * @param type       тип объекта, который нужно прочитать и вернуть
-     * @param offset     смещение в файле, с которого начинаются нужные данные
-     * @param descriptor дескриптор сохраняемого объекта, содержит пути к файлам с данными и ключами
-     *                   и объекты для работы с этими файлами (запись/чтение)
+     * @param clazz класс объекта
+     * @param key   ключ объекта
+     * @return дескриптор шарда
      * @throws IOException
-     * @throws IllegalAccessException
      */
-    private <T> T readObjectByOffset(Class<T> type, long offset, DbDescriptor descriptor) throws IOException, IllegalAccessException, InstantiationException {
-        Object object = type.newInstance();
-        Reader reader = descriptor.getReader();
-        RandomAccessFile raf = reader.getReader();
-
-        raf.seek(offset);
-
-        for (Field field : descriptor.fields) {
-            field.set(object, readOneFieldFromFile(field.getType(), raf));
-        }
-
-        descriptor.releaseReader(reader);
-        return (T) object;
+    private DbDescriptor getDbDescriptor(Class<?> clazz, int key) throws IOException {
+        DbDescriptor[] shards = getDbDescriptors(clazz);
+        return shards.length == 1 ? shards[0] : shards[shardOf(key, shards.length)];
     }
 
     /**
-     * читает значение поля из файла
-     *
-     * @param type   тип поля, для которого читается значение
-     * @param reader объект типа RandomAccessFile для чтения полей из файла
-     * @param <T>    определяет какого типа данные нужно вернуть пользователю
-     * @return возвращает значение поля приведенного к нужному типу 'T'
+     * номер шарда ключа по хешу Фибоначчи: шард выбирают старшие биты произведения ключа на 0x9E3779B9.
+     * младшие биты произведения повторяют младшие биты ключа, поэтому остаток от деления на степень двойки
+     * отправил бы ключи с шагом, кратным количеству шардов, в один шард
      */
-    private <T> T readOneFieldFromFile(Class<T> type, RandomAccessFile reader) throws IOException {
-        Object fieldValue = null;
+    static int shardOf(int key, int shards) {
+        return (int) (((key * 0x9E3779B9) & 0xFFFFFFFFL) * shards >>> 32);
+    }
 
-        try {
-            switch (type.toString()) {
-                case "boolean":
-                    fieldValue = reader.readBoolean();
-                    break;
-                case "int":
-                    fieldValue = reader.readInt();
-                    break;
-                case "long":
-                    fieldValue = reader.readLong();
-                    break;
-                case "float":
-                    fieldValue = reader.readFloat();
-                    break;
-                case "double":
-                    fieldValue = reader.readDouble();
-                    break;
-                case "class java.lang.String":
-                    int length = reader.readInt();
-                    byte[] buffer = new byte[length];
-                    reader.read(buffer);
-                    fieldValue = new String(buffer);
-                    break;
+    /**
+     * возвращает дескрипторы всех шардов таблицы (без шардирования - один дескриптор)
+     * открывает файлы, нужные для сохранения или чтения данных для объектов данного класса
+     *
+     * @param clazz класс объекта, для которого нужно получить дескриптор
+     * @return дескрипторы шардов по порядку номеров
+     * @throws IOException
+     */
+    private DbDescriptor[] getDbDescriptors(Class<?> clazz) throws IOException {
+        DbDescriptor[] existing = descriptors.get(clazz);
+        if (existing != null)
+            return existing;
+
+        // дескриптор создается один раз, даже если таблицу одновременно открывают несколько потоков
+        synchronized (descriptorLocks.computeIfAbsent(clazz, c -> new Object())) {
+            if (descriptors.containsKey(clazz))
+                return descriptors.get(clazz);
+
+            String[] names = shardNames(clazz);
+            DbDescriptor[] shards = new DbDescriptor[names.length];
+            for (int i = 0; i < names.length; i++) {
+                shards[i] = openDbDescriptor(clazz, names[i]);
+            }
+            descriptors.put(clazz, shards);
+            return shards;
+        }
+    }
+
+    /**
+     * возвращает имена файлов шардов таблицы: Type без шардирования, Type-0 ... Type-(N-1) при N шардах.
+     * проверяет, что таблица не была создана с другим количеством шардов
+     *
+     * @param clazz класс объектов таблицы
+     * @return имена файлов шардов без расширения
+     * @throws IOException
+     */
+    private String[] shardNames(Class<?> clazz) throws IOException {
+        String name = clazz.getSimpleName();
+        int shards = options.shards;
+        int existing = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(mainDirectory), name + "-*Keys" + extension)) {
+            for (Path ignored : files) {
+                existing++;
+            }
+        }
+        if (Files.exists(Paths.get(mainDirectory, name + "Keys" + extension)))
+            existing = existing == 0 ? 1 : -1;
+        if (existing != 0 && existing != shards)
+            throw new IllegalStateException("Table " + name + " is stored in " + (existing < 0 ? "mixed" : existing)
+                    + " shard(s), but the database is opened with " + shards);
+
+        if (shards == 1)
+            return new String[]{name};
+        String[] names = new String[shards];
+        for (int i = 0; i < shards; i++) {
+            names[i] = name + "-" + i;
+        }
+        return names;
+    }
+
+    /**
+     * открывает файлы одного шарда таблицы и создает его дескриптор
+     *
+     * @param clazz класс объектов таблицы
+     * @param name  имя файлов шарда без расширения
+     * @return дескриптор шарда
+     * @throws IOException
+     */
+    private DbDescriptor openDbDescriptor(Class<?> clazz, String name) throws IOException {
+        Field[] fields = clazz.getDeclaredFields();
+        Path filePath = Paths.get(mainDirectory, name + extension);
+        Path keyFilePath = Paths.get(mainDirectory, name + "Keys" + extension);
+
+        KeyOffsetIndex index = awaitKeyIndex(keyFilePath);
+        if (index != null)
+            keys.put(keyFilePath, index);
+        RandomAccessFile keyWriter = openFile(keyFilePath);
+
+        List<Field> flds = new ArrayList<>();
+        List<String> indexedFields = new ArrayList<>();
+
+        for (Field fld : fields) {
+            if (fld.getAnnotation(Exclude.class) == null) {
+                fld.setAccessible(true);
+                flds.add(fld);
+                if (fld.getAnnotation(Index.class) != null)
+                    indexedFields.add(fld.getName());
+            }
+        }
+
+        Field[] descriptorFields = flds.toArray(new Field[flds.size()]);
+        DbDescriptor descriptor = new DbDescriptor(filePath, keyFilePath, keyWriter, descriptorFields,
+                RecordCodec.of(clazz, descriptorFields));
+        descriptor.type = clazz;
+        descriptor.name = name;
+        openSegments(descriptor);
+        attachFileServices(descriptor);
+        descriptor.keyEntries = keyWriter.length() / KEY_ENTRY_SIZE;
+        for (String field : indexedFields) {
+            descriptor.secondaryIndexes.put(field, openSecondaryIndex(clazz, field, descriptor));
+        }
+        if (options.recordCacheEntries > 0 || options.recordCacheBytes > 0)
+            descriptor.recordCache = new RecordCache(options.recordCacheEntries, options.recordCacheBytes);
+        if (options.scanCache)
+            descriptor.scanCache = new ScanCache();
+        if (options.writeBehindBytes > 0)
+            descriptor.memtable = new Memtable(options.writeBehindBytes,
+                    () -> flushScheduler.execute(() -> flushInBackground(descriptor)));
+        // запись постоянной длины можно перезаписывать на месте, если изменение не идет через память и вторичные индексы
+        if (descriptor.fixedRecordSize > 0 && descriptor.memtable == null && descriptor.secondaryIndexes.isEmpty())
+            descriptor.seqLock = new StripedSeqLock(descriptor.fixedRecordSize);
+        descriptor.metrics.type = clazz;
+        descriptor.metrics.listener = options.metricsListener;
+        if (options.jmx)
+            registerMXBean(descriptor);
+        return descriptor;
+    }
+
+    /**
+     * регистрирует метрики таблицы в платформенном MBeanServer
+     *
+     * @param descriptor дескриптор таблицы
+     */
+    private void registerMXBean(DbDescriptor descriptor) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new TableMonitor(this, descriptor), mxBeanName(descriptor));
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private ObjectName mxBeanName(DbDescriptor descriptor) throws MalformedObjectNameException {
+        return new ObjectName("com.itmo:type=KVDataBase,directory=" + ObjectName.quote(mainDirectory)
+                + ",table=" + descriptor.name);
+    }
+
+    /**
+     * @return индекс ключей таблицы или null, если у таблицы еще нет ключей
+     */
+    KeyOffsetIndex keyIndex(DbDescriptor descriptor) {
+        return keys.get(descriptor.keyFilePath);
+    }
+
+    /**
+     * @return время загрузки индекса ключей шарда при открытии базы в миллисекундах или -1, если индекс не загружался
+     */
+    long indexLoadMillis(DbDescriptor descriptor) {
+        return indexLoadMillis.getOrDefault(descriptor.keyFilePath, -1L);
+    }
+
+    /**
+     * возвращает открытый на запись файл из директории, открывая его, если нужно
+     *
+     * @param path путь к файлу
+     * @return файл, открытый на чтение и запись
+     * @throws FileNotFoundException
+     */
+    private RandomAccessFile openFile(Path path) throws FileNotFoundException {
+        RandomAccessFile file = filesInDirectory.get(path);
+        if (file == null) {
+            file = new RandomAccessFile(path.toFile(), "rw");
+            filesInDirectory.put(path, file);
+        }
+        return file;
+    }
+
+    /**
+     * открывает сегменты файла с данными таблицы: Type.kvdb и Type.N.kvdb.
+     * дописываемым становится сегмент с наибольшим номером, у новой таблицы это пустой сегмент 0
+     *
+     * @param descriptor дескриптор таблицы
+     * @throws IOException
+     */
+    private void openSegments(DbDescriptor descriptor) throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        if (Files.exists(segmentPath(descriptor.name, 0)))
+            ids.add(0);
+        String prefix = descriptor.name + ".";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(mainDirectory), prefix + "*" + extension)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                try {
+                    ids.add(Integer.parseInt(fileName.substring(prefix.length(), fileName.length() - extension.length())));
+                } catch (NumberFormatException e) {
+                    // не сегмент таблицы
+                }
+            }
+        }
+        if (ids.isEmpty())
+            ids.add(0);
+        Collections.sort(ids);
+        int last = ids.get(ids.size() - 1);
+        for (int id : ids) {
+            Path path = segmentPath(descriptor.name, id);
+            // файл дописываемого сегмента создается, если его нет
+            RandomAccessFile writer = id == last ? openFile(path) : null;
+            Segment segment = new Segment(id, path, options.mappedReads);
+            descriptor.putSegment(segment);
+            if (writer != null)
+                descriptor.activate(segment, writer);
+        }
+        descriptor.nextSegmentId = last + 1;
+    }
+
+    /**
+     * @return путь к сегменту файла с данными: Type.kvdb для сегмента 0, Type.N.kvdb для остальных
+     */
+    private Path segmentPath(String name, int id) {
+        return Paths.get(mainDirectory, id == 0 ? name + extension : name + "." + id + extension);
+    }
+
+    /**
+     * подключает к дескриптору сброс на диск согласно настройкам базы
+     *
+     * @param descriptor дескриптор таблицы с уже открытыми файлами
+     * @throws IOException
+     */
+    private void attachFileServices(DbDescriptor descriptor) throws IOException {
+        descriptor.sync = new FileSync(options.durability,
+                descriptor.dbFileWriter.getChannel(), descriptor.keyFileWriter.getChannel());
+    }
+
+    /**
+     * открывает вторичный индекс поля: читает его журнал и сверяет с индексом ключей таблицы.
+     * объекты, которые добавлены или изменены после последней записи в журнал, индексируются заново по файлу с данными
+     *
+     * @param clazz      класс объектов таблицы
+     * @param field      имя поля, помеченного {@link Index}
+     * @param descriptor дескриптор таблицы
+     * @return возвращает индекс, согласованный с индексом ключей
+     * @throws IOException
+     */
+    private SecondaryIndex openSecondaryIndex(Class<?> clazz, String field, DbDescriptor descriptor) throws IOException {
+        Path indexPath = secondaryIndexPath(descriptor.name, field);
+        SecondaryIndex secondaryIndex = new SecondaryIndex(field, descriptor.codec, openFile(indexPath));
+        secondaryIndex.load();
+
+        KeyOffsetIndex index = keys.get(descriptor.keyFilePath);
+        secondaryIndex.removeDead(index);
+        if (index == null)
+            return secondaryIndex;
+
+        // пары 'ключ - смещение', которых нет в журнале индекса
+        List<long[]> stale = new ArrayList<>();
+        index.forEach((key, offset) -> {
+            if (secondaryIndex.offsetOf(key) != offset)
+                stale.add(new long[]{key, offset});
+        });
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entries);
+        for (long[] entry : stale) {
+            Object object = readObjectByOffset(clazz, entry[1], descriptor);
+            Object value = descriptor.codec.getField(object, secondaryIndex.fieldIndex);
+            secondaryIndex.put((int) entry[0], entry[1], value);
+            secondaryIndex.writeEntry((int) entry[0], entry[1], value, out);
+        }
+        if (entries.size() > 0)
+            secondaryIndex.append(entries.toByteArray());
+        return secondaryIndex;
+    }
+
+    private Path secondaryIndexPath(String tableName, String field) {
+        return Paths.get(mainDirectory, tableName + "_" + field + ".kvidx");
+    }
+
+    /**
+     * сохраняет значения индексированных полей объекта во вторичных индексах таблицы (в памяти и в журнале)
+     *
+     * @param key        ключ объекта
+     * @param offset     смещение объекта в файле с данными
+     * @param object     сохраненный объект
+     * @param descriptor дескриптор таблицы
+     * @throws IOException
+     */
+    private void indexObject(int key, long offset, Object object, DbDescriptor descriptor) throws IOException {
+        for (SecondaryIndex secondaryIndex : descriptor.secondaryIndexes.values()) {
+            Object value = descriptor.codec.getField(object, secondaryIndex.fieldIndex);
+            secondaryIndex.appendEntry(key, offset, value);
+            secondaryIndex.put(key, offset, value);
+        }
+    }
+
+    /**
+     * сохраняет значения ключа и смещения в памяти
+     * записывает ключ и смещение в файле с полями объекта по этому ключу, с которого началась запись этих полей
+     *
+     * @param key        значение ключа, которое надо сохранить в файл
+     * @param offset     смещение по этому ключу
+     * @param descriptor дескриптор сохраняемого объекта, содержит пути к файлам с данными и ключами
+     *                   и объекты для работы с этими файлами (запись/чтение)
+     * @throws IOException
+     */
+    private void writeKeyToFile(int key, long offset, DbDescriptor descriptor) throws IOException {
+        writeKeyToMemory(key, offset, descriptor.keyFilePath);
+
+        ByteBuffer entry = descriptor.keyEntry.putInt(0, key).putLong(Integer.BYTES, offset);
+        RandomAccessFile writer = descriptor.keyFileWriter;
+        writer.seek(descriptor.keyTail);
+        writer.write(entry.array());
+        descriptor.keyTail += KEY_ENTRY_SIZE;
+        descriptor.metrics.keyBytesWritten.add(KEY_ENTRY_SIZE);
+    }
+
+    /**
+     * сохраняет значения ключа и смещения в файле с полями в мапу keys,
+     * которая хранит имя файла, в котором находятся значения, в качестве ключа для получения этих значений
+     *
+     * @param key         ключ, который сохраняется в файл
+     * @param offset      смещение по этому ключу
+     * @param keyFilePath имя файла, в котором будут храниться значения ключа и смещения
+     */
+    private void writeKeyToMemory(int key, long offset, Path keyFilePath) {
+        KeyOffsetIndex index = keys.get(keyFilePath);
+        if (index == null)
+            index = keys.computeIfAbsent(keyFilePath, path -> newKeyIndex(path, "", 0));
+        index.put(key, offset);
+    }
+
+    /**
+     * считает смещение в файле, с которого начнется запись полей объекта
+     * просматривает поля объекта и, если поле не помечено аннотацией @Exclude, сохраняет его в файл
+     *
+     * @param object     объект, который нужно сохранить в файл
+     * @param descriptor дескриптор сохраняемого объекта, содержит пути к файлам с данными и ключами
+     *                   и объекты для работы с этими файлами (запись/чтение)
+     * @return возвращает смещение, с которого началась запись в файл
+     * @throws IOException
+     */
+    private long writeObjectToFile(Object object, DbDescriptor descriptor) throws IOException {
+        maybeRollSegment(descriptor);
+        RandomAccessFile writer = descriptor.dbFileWriter;
+        long position = descriptor.dataTail;
+
+        RecordBuffer buffer = descriptor.writeBuffer;
+        buffer.reset();
+        descriptor.codec.write(object, buffer.out);
+
+        writer.seek(position);
+        writer.write(buffer.array(), 0, buffer.size());
+        descriptor.dataTail = position + buffer.size();
+        descriptor.metrics.dataBytesWritten.add(buffer.size());
+        if (descriptor.active.mappedFile != null)
+            descriptor.active.mappedFile.extend(descriptor.dataTail);
+
+        return Segment.offset(descriptor.active.id, position);
+    }
+
+    /**
+     * закрывает для записи дописываемый сегмент, если он дорос до размера сегмента, вызывается под appendLock
+     *
+     * @param descriptor дескриптор таблицы
+     * @throws IOException
+     */
+    private void maybeRollSegment(DbDescriptor descriptor) throws IOException {
+        if (options.segmentSize > 0 && descriptor.dataTail >= options.segmentSize)
+            rollSegment(descriptor);
+    }
+
+    /**
+     * закрывает для записи дописываемый сегмент и начинает новый, вызывается под appendLock.
+     * записи закрываемого сегмента сбрасываются на диск до переключения, если этого требует режим сброса
+     *
+     * @param descriptor дескриптор таблицы
+     * @throws IOException
+     */
+    private void rollSegment(DbDescriptor descriptor) throws IOException {
+        Segment sealed = descriptor.active;
+        int id = descriptor.newSegmentId();
+        Path path = segmentPath(descriptor.name, id);
+        RandomAccessFile writer = openFile(path);
+        Segment segment = new Segment(id, path, options.mappedReads);
+        descriptor.putSegment(segment);
+        descriptor.sync.reattach(writer.getChannel(), descriptor.keyFileWriter.getChannel());
+        sealed.length = descriptor.dataTail;
+        descriptor.activate(segment, writer);
+        filesInDirectory.remove(sealed.path).close();
+        descriptor.rollovers++;
+    }
+
+    /**
+     * читает поля объекта из файла, строит объект нужного типа 'Т' и возвращает его пользователю
+     *
+     * @param key  ключ объекта, по которому производится поиск значений полей объекта в файле
+     * @param type тип объекта, который нужно вернуть
+     * @param <T>
+     * @return возвращает объект типа 'T' с заполненныйми полями или null, если нет объекта с таким ключем
+     */
+    public <T> T getByKey(int key, Class<T> type) {
+        long start = System.nanoTime();
+        Object object;
+        DbDescriptor descriptor = null;
+        try {
+            DbDescriptor table = getDbDescriptor(type, key);
+            // несброшенное изменение ключа новее записи в файле
+            Memtable memtable = table.memtable;
+            byte[] record = memtable == null ? null : memtable.get(key);
+            if (record != null) {
+                object = record == Memtable.REMOVED ? null : decodeRecord(record, table);
+                table.metrics.record(MetricsListener.Operation.GET_BY_KEY, start);
+                return (T) object;
+            }
+            table.lockRead();
+            descriptor = table;
+
+            long offset = getOffset(key, descriptor.keyFilePath);
+            if (offset < 0)
+                return null;
+
+            RecordCache recordCache = descriptor.recordCache;
+            if (recordCache != null) {
+                object = recordCache.get(key, offset);
+                if (object != null)
+                    return (T) object;
+            }
+
+            // запись, перезаписанная на месте, остается по тому же смещению: версия показывает, не устарел ли объект
+            long epoch = descriptor.epoch;
+            object = readObjectByOffset(type, offset, descriptor);
+            if (recordCache != null) {
+                recordCache.put(key, offset, object, descriptor.codec.estimateSize(object));
+                if (descriptor.seqLock != null && descriptor.epoch != epoch)
+                    recordCache.invalidate(key);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (descriptor != null) {
+                descriptor.tableLock.readLock().unlock();
+                descriptor.metrics.record(MetricsListener.Operation.GET_BY_KEY, start);
+            }
+        }
+
+        return (T) object;
+    }
+
+    /**
+     * возвращает объект, который соответствует некоторому критерию
+     *
+     * @param <T>
+     * @return
+     */
+
+    public <T> T findFirst(Class<T> type, Predicate<T> predicate) {
+        try {
+            for (DbDescriptor descriptor : flushMemtables(getDbDescriptors(type))) {
+                T object = findFirst(descriptor, descriptor.codec, predicate);
+                if (object != null)
+                    return object;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return null;
+    }
+
+    /**
+     * то же, что {@link #findFirst(Class, Predicate)}, но условие проверяется по байтам записи:
+     * объект создается только для подходящей записи
+     *
+     * @param type   тип объектов
+     * @param filter условие на значения полей, см. {@link Filters}
+     * @param <T>
+     * @return первый подходящий объект или null, если таких нет
+     * @throws IllegalArgumentException если фильтр ссылается на несохраняемое поле или значение не подходит к типу поля
+     */
+    public <T> T findFirst(Class<T> type, Filter filter) {
+        try {
+            for (DbDescriptor descriptor : flushMemtables(getDbDescriptors(type))) {
+                RecordFilter recordFilter = new RecordFilter(descriptor.codec, filter);
+                T object = findFirst(descriptor, recordFilter, recordFilter::test);
+                if (object != null)
+                    return object;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return null;
+    }
+
+    /**
+     * @param reader    читает записи файла: кодировщик таблицы или фильтр, пропускающий неподходящие записи
+     * @param predicate проверяет объекты из кэша просмотров и построенные кодировщиком, фильтр проверяет запись сам
+     */
+    private <T> T findFirst(DbDescriptor descriptor, RecordReader reader, Predicate<T> predicate) throws IOException {
+        descriptor.lockRead();
+        try {
+            ScanCache scanCache = descriptor.scanCache;
+            List<Object> cached = scanCache == null ? null : scanCache.get(descriptor.epoch);
+            if (cached != null) {
+                for (Object cachedObject : cached) {
+                    if (predicate.test((T) cachedObject))
+                        return (T) cachedObject;
+                }
+                return null;
+            }
+
+            SeekableInput input = descriptor.scanInput();
+            for (long offset : liveOffsets(descriptor)) {
+                T object = readObjectFromFile(input, offset, reader, descriptor);
+                if (object != null && (reader != descriptor.codec || predicate.test(object)))
+                    return object;
+            }
+        } finally {
+            descriptor.tableLock.readLock().unlock();
+        }
+
+        return null;
+    }
+
+    /**
+     * возвращает смещения актуальных записей таблицы в порядке возрастания:
+     * просмотр идет по файлу подряд, старые версии и удаленные объекты пропускаются по индексу
+     *
+     * @param descriptor дескриптор таблицы
+     * @return отсортированные смещения
+     */
+    private long[] liveOffsets(DbDescriptor descriptor) {
+        KeyOffsetIndex index = keys.get(descriptor.keyFilePath);
+        return index == null ? new long[0] : index.sortedOffsets();
+    }
+
+    private <T> T readObjectFromFile(SeekableInput input, long offset, RecordReader reader, DbDescriptor descriptor) throws IOException {
+        Object object;
+        try {
+            object = input.readRecord(reader, offset, descriptor.seqLock);
+        } catch (EndOfFileException e) {
+            return null;
+        }
+        return (T) object;
+    }
+
+    /**
+     * возвращает все объекты, которые соответствуют некоторому критерию.
+     * если включен кэш просмотров и таблица не менялась с прошлого просмотра, объекты берутся из памяти
+     *
+     * @param type      тип объектов
+     * @param predicate критерий отбора
+     * @param <T>
+     * @return список подходящих объектов или null, если таких нет
+     */
+    public <T> List<T> findAll(Class<T> type, Predicate<T> predicate) {
+        List<T> list = new ArrayList<>();
+        try {
+            for (DbDescriptor descriptor : flushMemtables(getDbDescriptors(type))) {
+                findAll(descriptor, descriptor.codec, predicate, list);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return list.size() == 0 ? null : list;
+    }
+
+    /**
+     * то же, что {@link #findAll(Class, Predicate)}, но условие проверяется по байтам записи:
+     * объекты создаются только для подходящих записей. на выборочных запросах это экономит разбор и память.
+     * такой просмотр кэш просмотров не заполняет, но пользуется им
+     *
+     * @param type   тип объектов
+     * @param filter условие на значения полей, см. {@link Filters}
+     * @param <T>
+     * @return список подходящих объектов или null, если таких нет
+     * @throws IllegalArgumentException если фильтр ссылается на несохраняемое поле или значение не подходит к типу поля
+     */
+    public <T> List<T> findAll(Class<T> type, Filter filter) {
+        List<T> list = new ArrayList<>();
+        try {
+            for (DbDescriptor descriptor : flushMemtables(getDbDescriptors(type))) {
+                RecordFilter recordFilter = new RecordFilter(descriptor.codec, filter);
+                findAll(descriptor, recordFilter, recordFilter::test, list);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return list.size() == 0 ? null : list;
+    }
+
+    /**
+     * добавляет в список подходящие объекты одного шарда таблицы
+     *
+     * @param reader    читает записи файла: кодировщик таблицы или фильтр, пропускающий неподходящие записи
+     * @param predicate проверяет объекты из кэша просмотров и построенные кодировщиком, фильтр проверяет запись сам
+     */
+    private <T> void findAll(DbDescriptor descriptor, RecordReader reader, Predicate<T> predicate, List<T> list) throws IOException {
+        long start = System.nanoTime();
+        List<Object> cacheList = null;
+        T object;
+
+        descriptor.lockRead();
+        try {
+            // версия читается до просмотра: запись, сделанная во время просмотра, сделает результат устаревшим
+            long epoch = descriptor.epoch;
+            ScanCache scanCache = descriptor.scanCache;
+            if (scanCache != null) {
+                List<Object> cached = scanCache.get(epoch);
+                if (cached != null) {
+                    for (Object cachedObject : cached) {
+                        if (predicate.test((T) cachedObject))
+                            list.add((T) cachedObject);
+                    }
+                    return;
+                }
+                // кэш заполняет только просмотр, который строит все объекты
+                if (reader == descriptor.codec)
+                    cacheList = new ArrayList<>();
+            }
+
+            SeekableInput input = descriptor.scanInput();
+            for (long offset : liveOffsets(descriptor)) {
+                object = readObjectFromFile(input, offset, reader, descriptor);
+                if (cacheList != null)
+                    cacheList.add(object);
+                if (object != null && (reader != descriptor.codec || predicate.test(object)))
+                    list.add(object);
+            }
+            if (cacheList != null)
+                scanCache.put(epoch, cacheList);
+        } finally {
+            descriptor.tableLock.readLock().unlock();
+            descriptor.metrics.record(MetricsListener.Operation.FIND_ALL, start);
+        }
+    }
+
+    /**
+     * то же, что {@link #findAll(Class, Predicate)}, но объекты читаются и проверяются параллельно:
+     * смещения актуальных записей делятся на отрезки, которые обрабатываются в общем ForkJoinPool.
+     * подходит для таблиц, где основное время уходит на разбор объектов и проверку критерия.
+     * порядок объектов в результате - порядок смещений в файле, кэш просмотров не используется
+     *
+     * @param type      тип объектов
+     * @param predicate критерий отбора, вызывается из нескольких потоков одновременно
+     * @param <T>
+     * @return список подходящих объектов или null, если таких нет
+     */
+    public <T> List<T> findAllParallel(Class<T> type, Predicate<T> predicate) {
+        List<T> list = new ArrayList<>();
+        try {
+            for (DbDescriptor descriptor : flushMemtables(getDbDescriptors(type))) {
+                long start = System.nanoTime();
+                descriptor.lockRead();
+                try {
+                    // блокировку держит вызывающий поток, потоки пула только читают файл
+                    list.addAll(new ScanTask<>(descriptor, liveOffsets(descriptor), predicate).invoke());
+                } finally {
+                    descriptor.tableLock.readLock().unlock();
+                    descriptor.metrics.record(MetricsListener.Operation.FIND_ALL, start);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return list.size() == 0 ? null : list;
+    }
+
+    /**
+     * открывает ленивый просмотр объектов таблицы, которые соответствуют критерию.
+     * объекты читаются из файла в порядке смещений по мере вызова {@link Cursor#next()},
+     * поэтому объем памяти не зависит от количества найденных объектов. курсор нужно закрыть,
+     * если он не просмотрен до конца
+     *
+     * @param type      тип объектов
+     * @param predicate критерий отбора
+     * @param <T>
+     * @return курсор по подходящим объектам
+     */
+    public <T> Cursor<T> cursor(Class<T> type, Predicate<T> predicate) {
+        DbDescriptor[] shards;
+        try {
+            shards = flushMemtables(getDbDescriptors(type));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        FileChannel[][] channels = new FileChannel[shards.length][];
+        long[][] offsets = new long[shards.length][];
+        StripedSeqLock[] seqLocks = new StripedSeqLock[shards.length];
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                // смещения и каналы берутся под одной блокировкой, чтобы сжатие таблицы не попало между ними
+                shards[i].lockRead();
+                try {
+                    offsets[i] = liveOffsets(shards[i]);
+                    channels[i] = shards[i].openSegmentChannels();
+                    seqLocks[i] = shards[i].seqLock;
+                } finally {
+                    shards[i].tableLock.readLock().unlock();
+                }
+            }
+        } catch (IOException e) {
+            for (FileChannel[] shardChannels : channels) {
+                try {
+                    if (shardChannels != null)
+                        Cursor.closeChannels(shardChannels);
+                } catch (IOException closeError) {
+                    e.addSuppressed(closeError);
+                }
+            }
+            throw new RuntimeException(e);
+        }
+        return new Cursor<>(shards[0].codec, channels, offsets, seqLocks, predicate);
+    }
+
+    /**
+     * возвращает ленивый поток всех объектов таблицы, см. {@link #cursor(Class, Predicate)}.
+     * поток нужно закрыть (например, через try-with-resources), если он прерван до конца, например limit
+     *
+     * @param type тип объектов
+     * @param <T>
+     * @return поток объектов таблицы
+     */
+    public <T> Stream<T> stream(Class<T> type) {
+        return cursor(type, object -> true).stream();
+    }
+
+    /**
+     * возвращает все объекты, у которых значение индексированного поля равно заданному.
+     * поле должно быть помечено аннотацией {@link Index}, поиск не просматривает файл с данными
+     *
+     * @param type  тип объектов
+     * @param field имя поля, помеченного {@link Index}
+     * @param value искомое значение поля
+     * @param <T>
+     * @return список подходящих объектов или null, если таких нет
+     */
+    public <T> List<T> findBy(Class<T> type, String field, Object value) {
+        List<T> list = new ArrayList<>();
+        try {
+            for (DbDescriptor descriptor : flushMemtables(getDbDescriptors(type))) {
+                findBy(descriptor, type, field, value, list);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return list.size() == 0 ? null : list;
+    }
+
+    private <T> void findBy(DbDescriptor descriptor, Class<T> type, String field, Object value, List<T> list) throws IOException {
+        descriptor.lockRead();
+        try {
+            SecondaryIndex secondaryIndex = getSecondaryIndex(descriptor, type, field);
+            Object expected = secondaryIndex.normalize(value);
+
+            KeyOffsetIndex index = keys.get(descriptor.keyFilePath);
+            for (int key : secondaryIndex.keysFor(expected)) {
+                long offset = index == null ? -1 : index.get(key);
+                if (offset < 0)
+                    continue;
+                Object object = readObjectByOffset(type, offset, descriptor);
+                // индекс обновляется после записи объекта, поэтому значение проверяется еще раз
+                if (Objects.equals(expected, descriptor.codec.getField(object, secondaryIndex.fieldIndex)))
+                    list.add((T) object);
+            }
+        } finally {
+            descriptor.tableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * возвращает объекты, у которых значение индексированного числового поля лежит в диапазоне [from, to],
+     * в порядке возрастания значения поля. читаются только объекты из диапазона
+     *
+     * @param type  тип объектов
+     * @param field имя числового поля, помеченного {@link Index}
+     * @param from  нижняя граница включительно, null - без границы
+     * @param to    верхняя граница включительно, null - без границы
+     * @param <T>
+     * @return список подходящих объектов или null, если таких нет
+     */
+    public <T> List<T> findRange(Class<T> type, String field, Object from, Object to) {
+        return findRange(type, field, from, to, false, Integer.MAX_VALUE);
+    }
+
+    /**
+     * то же, что {@link #findRange(Class, String, Object, Object)}, но с заданным порядком и количеством объектов.
+     * например, последние 10 объектов по времени: findRange(type, "timestamp", null, null, true, 10)
+     *
+     * @param type       тип объектов
+     * @param field      имя числового поля, помеченного {@link Index}
+     * @param from       нижняя граница включительно, null - без границы
+     * @param to         верхняя граница включительно, null - без границы
+     * @param descending true - в порядке убывания значения поля
+     * @param limit      максимальное количество объектов
+     * @param <T>
+     * @return список подходящих объектов или null, если таких нет
+     */
+    public <T> List<T> findRange(Class<T> type, String field, Object from, Object to, boolean descending, int limit) {
+        List<T> list = new ArrayList<>();
+        try {
+            DbDescriptor[] shards = flushMemtables(getDbDescriptors(type));
+            for (DbDescriptor descriptor : shards) {
+                findRange(descriptor, type, field, from, to, descending, limit, list);
+            }
+            if (shards.length > 1) {
+                // у каждого шарда свой индекс: первые limit объектов каждого шарда сливаются по значению поля
+                RecordCodec codec = shards[0].codec;
+                int fieldIndex = codec.fieldIndex(field);
+                Comparator<T> order = (a, b) -> ((Comparable<Object>) codec.getField(a, fieldIndex)).compareTo(codec.getField(b, fieldIndex));
+                list.sort(descending ? order.reversed() : order);
+                if (list.size() > limit)
+                    list = new ArrayList<>(list.subList(0, limit));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return list.size() == 0 ? null : list;
+    }
+
+    private <T> void findRange(DbDescriptor descriptor, Class<T> type, String field, Object from, Object to,
+                               boolean descending, int limit, List<T> list) throws IOException {
+        descriptor.lockRead();
+        try {
+            SecondaryIndex secondaryIndex = getSecondaryIndex(descriptor, type, field);
+            if (!secondaryIndex.ordered)
+                throw new IllegalArgumentException("Field " + field + " of " + type.getName() + " is not numeric");
+            Object lo = from == null ? null : secondaryIndex.normalize(from);
+            Object hi = to == null ? null : secondaryIndex.normalize(to);
+
+            KeyOffsetIndex index = keys.get(descriptor.keyFilePath);
+            for (int key : secondaryIndex.keysInRange(lo, hi, descending, limit)) {
+                long offset = index == null ? -1 : index.get(key);
+                if (offset < 0)
+                    continue;
+                Object object = readObjectByOffset(type, offset, descriptor);
+                if (secondaryIndex.inRange(descriptor.codec.getField(object, secondaryIndex.fieldIndex), lo, hi))
+                    list.add((T) object);
             }
-        } catch (EOFException e) {
-            throw new EndOfFileException(e.getMessage());
+        } finally {
+            descriptor.tableLock.readLock().unlock();
+        }
+    }
+
+    private SecondaryIndex getSecondaryIndex(DbDescriptor descriptor, Class<?> type, String field) {
+        SecondaryIndex secondaryIndex = descriptor.secondaryIndexes.get(field);
+        if (secondaryIndex == null)
+            throw new IllegalArgumentException("Field " + field + " of " + type.getName() + " is not indexed");
+        return secondaryIndex;
+    }
+
+    /**
+     * находит смещение в мапе по ключу
+     *
+     * @param key         ключ для которого надо найти смещение
+     * @param keyFilePath файл, в котором записаны данные (используется как ключ для мапы)
+     * @return возвращает значение смещения для заланного ключа или -1, если такого ключа нет в мапе
+     */
+    private long getOffset(int key, Path keyFilePath) {
+        try {
+            return keys.get(keyFilePath).get(key);
+        } catch (NullPointerException e) {
+            throw new KeyNotFoundException(e.getMessage());
+        }
+    }
+
+    /**
+     * возвращает статистику кэша прочитанных объектов таблицы: попадания, промахи, вытеснения и размер.
+     * у каждого шарда свой кэш, для шардированной таблицы возвращается сумма
+     *
+     * @param type тип объектов таблицы
+     * @return статистика кэша или null, если кэш выключен в настройках
+     */
+    public CacheStats getRecordCacheStats(Class<?> type) {
+        try {
+            CacheStats stats = null;
+            for (DbDescriptor descriptor : getDbDescriptors(type)) {
+                RecordCache recordCache = descriptor.recordCache;
+                if (recordCache != null)
+                    stats = stats == null ? recordCache.stats() : stats.merge(recordCache.stats());
+            }
+            return stats;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * возвращает объем памяти, который занимает индекс ключей таблицы
+     *
+     * @param type тип объектов таблицы
+     * @return размер индекса в байтах или 0, если для таблицы еще нет ключей
+     */
+    public long getIndexMemoryUsage(Class<?> type) {
+        try {
+            long usage = 0;
+            for (DbDescriptor descriptor : getDbDescriptors(type)) {
+                KeyOffsetIndex index = keys.get(descriptor.keyFilePath);
+                usage += index == null ? 0 : index.memoryUsage();
+            }
+            return usage;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * читает значения полей из файла и устанавливает их переданным полям объекта
+     *
+     * @param type       тип объекта, который нужно прочитать и вернуть
+     * @param offset     смещение в файле, с которого начинаются нужные данные
+     * @param descriptor дескриптор сохраняемого объекта, содержит пути к файлам с данными и ключами
+     *                   и объекты для работы с этими файлами (запись/чтение)
+     * @throws IOException
+     */
+    private <T> T readObjectByOffset(Class<T> type, long offset, DbDescriptor descriptor) throws IOException {
+        if (descriptor.active.mappedFile != null) {
+            MappedDataFile.Input input = mappedReaders.get();
+            input.attach(descriptor);
+            return (T) input.readRecord(descriptor.codec, offset, descriptor.seqLock);
         }
 
-        return (T) fieldValue;
+        BlockReader reader = recordReaders.get();
+        reader.attach(descriptor);
+        return (T) reader.readRecord(descriptor.codec, offset, descriptor.seqLock);
     }
 
     /**
@@ -580,14 +1636,42 @@ public class KVDataBase {
      * @param type тип удаляемого объекта (определяет в каком файле находятся поля этогго объекта)
      */
     public void remove(int key, Class<?> type) {
+        DbDescriptor descriptor;
+        long ticket;
+        try {
+            descriptor = getDbDescriptor(type, key);
+            if (descriptor.memtable != null) {
+                descriptor.memtable.put(key, Memtable.REMOVED);
+                return;
+            }
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+
+        descriptor.lockAppend();
         try {
-            DbDescriptor descriptor = getDbDescriptor(type);
             removeKeyFromMemory(key, descriptor.keyFilePath);
             writeKeyToFile(key, -1, descriptor);
+            for (SecondaryIndex secondaryIndex : descriptor.secondaryIndexes.values()) {
+                secondaryIndex.remove(key);
+            }
+            ticket = descriptor.sync.written();
+            if (descriptor.recordCache != null)
+                descriptor.recordCache.invalidate(key);
+            descriptor.epoch++;
+            descriptor.keyEntries++;
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            descriptor.appendLock.unlock();
         }
 
+        try {
+            descriptor.sync.commit(ticket);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        maybeCompact(descriptor);
     }
 
     /**
@@ -598,7 +1682,7 @@ public class KVDataBase {
      */
     private void removeKeyFromMemory(int key, Path keyFilePath) {
         try {
-            HashMap<Integer, Long> keyOffsetMap = keys.get(keyFilePath);
+            KeyOffsetIndex keyOffsetMap = keys.get(keyFilePath);
             keyOffsetMap.remove(key);
         } catch (NullPointerException e) {
             throw new KeyNotFoundException(e.getMessage());
@@ -606,100 +1690,555 @@ public class KVDataBase {
     }
 
     /**
-     * обновить в файле значение полей объекта с данным ключом
+     * обновить в файле значение полей объекта с данным ключом.
+     * наличие объекта проверяется по индексу (и по изменениям в памяти), старая запись не читается.
+     * у класса, все поля которого фиксированной длины, запись перезаписывается на месте, а не дописывается
      *
      * @param key    ключ объекта, данные которого надо обновить
      * @param object новый объект, значения полей которого заменят старые значения в файле.
      */
     public void update(int key, Object object) {
+        DbDescriptor descriptor;
+        try {
+            descriptor = getDbDescriptor(object.getClass(), key);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] record = descriptor.memtable == null ? null : descriptor.memtable.get(key);
+        if (record == Memtable.REMOVED)
+            throw new ObjectDataNotFound();
+        if (descriptor.seqLock != null) {
+            long start = System.nanoTime();
+            try {
+                if (overwrite(descriptor, key, object)) {
+                    descriptor.metrics.record(MetricsListener.Operation.ADD, start);
+                    return;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        } else if (record == null) {
+            descriptor.lockRead();
+            try {
+                if (getOffset(key, descriptor.keyFilePath) < 0)
+                    throw new ObjectDataNotFound();
+            } finally {
+                descriptor.tableLock.readLock().unlock();
+            }
+        }
+
+        add(key, object);
+    }
+
+    /**
+     * перезаписывает запись постоянной длины по ее смещению в дописываемом сегменте:
+     * файл с ключами и индекс не меняются, устаревшей записи не остается.
+     * перезапись идет под {@link StripedSeqLock}, читатели перечитывают запись, изменившуюся во время чтения
+     *
+     * @param descriptor дескриптор таблицы с перезаписью на месте
+     * @param key        ключ объекта
+     * @param object     новый объект
+     * @return false, если запись нельзя перезаписать (она в закрытом сегменте или идет сжатие) и ее нужно дописать
+     * @throws ObjectDataNotFound если объекта с таким ключом нет
+     * @throws IOException
+     */
+    private boolean overwrite(DbDescriptor descriptor, int key, Object object) throws IOException {
+        long ticket;
+        descriptor.lockAppend();
         try {
-            DbDescriptor descriptor = getDbDescriptor(object.getClass());
             long offset = getOffset(key, descriptor.keyFilePath);
             if (offset < 0)
                 throw new ObjectDataNotFound();
+            if (descriptor.compacting || Segment.id(offset) != descriptor.active.id)
+                return false;
 
-            Object obj = readObjectByOffset(object.getClass(), offset, descriptor);
-            if (obj == null)
-                throw new ObjectDataNotFound();
+            RecordBuffer buffer = descriptor.writeBuffer;
+            buffer.reset();
+            descriptor.codec.write(object, buffer.out);
 
-            add(key, object);
-        } catch (IllegalAccessException | InstantiationException | IOException e) {
-            throw new RuntimeException(e);
+            RandomAccessFile writer = descriptor.dbFileWriter;
+            descriptor.seqLock.beginWrite(offset);
+            try {
+                writer.seek(Segment.position(offset));
+                writer.write(buffer.array(), 0, buffer.size());
+            } finally {
+                descriptor.seqLock.endWrite(offset);
+            }
+            descriptor.metrics.dataBytesWritten.add(buffer.size());
+            ticket = descriptor.sync.written();
+            // версия меняется до сброса кэша: getByKey по ней узнает, что прочитал запись до перезаписи
+            descriptor.epoch++;
+            if (descriptor.recordCache != null)
+                descriptor.recordCache.invalidate(key);
+        } finally {
+            descriptor.appendLock.unlock();
         }
+        descriptor.sync.commit(ticket);
+        return true;
     }
 
     /**
-     * переписывает указанный файл с данныйми
+     * переписывает указанный файл с данныйми, оставляя только актуальные записи.
+     * у таблицы из сегментов переписываются только сегменты, в которых есть устаревшие записи.
+     * чтение и запись таблицы во время переписывания продолжаются, они ждут только замены файлов в самом конце
      *
      * @param type определяет таблицу для которой нужно переписать файл (имя файла)
      */
     public void truncate(Class<?> type) {
-        lock.writeLock().lock();
-        File file = new File(mainDirectory + File.separator + type.getSimpleName() + extension);
-        if (!file.exists())
+        if (!descriptors.containsKey(type) && !Files.exists(Paths.get(mainDirectory, type.getSimpleName() + "Keys" + extension))
+                && !Files.exists(Paths.get(mainDirectory, type.getSimpleName() + "-0Keys" + extension)))
             return;
 
         try {
-            DbDescriptor descriptor = getDbDescriptor(type);
-            File newDataFile = new File(descriptor.filePath.toString() + ".tmp");
-            File newKeyFile = new File(descriptor.keyFilePath.toString() + ".tmp");
-            rewriteFile(type, descriptor, newDataFile, newKeyFile);
-            // закрытие всех RAF
-            for (int i = 0; i < descriptor.readers.length; i++) {
-                descriptor.readers[i].getReader().close();
-            }
-            descriptor.dbFileWriter.close();
-            descriptor.keyFileWriter.close();
-            filesInDirectory.get(descriptor.filePath).close();
-            filesInDirectory.get(descriptor.keyFilePath).close();
-            filesInDirectory.remove(descriptor.filePath);
-            filesInDirectory.remove(descriptor.keyFilePath);
-            // переименование файлов, удаление старых
-            descriptor.filePath.toFile().delete();
-            descriptor.keyFilePath.toFile().delete();
-            newDataFile.renameTo(descriptor.filePath.toFile());
-            newKeyFile.renameTo(descriptor.keyFilePath.toFile());
-            descriptors.remove(type);
-            // открытие новых RAF
-            getDbDescriptor(type);
-        } catch (IOException | IllegalAccessException | InstantiationException e) {
+            // шарды сжимаются по одному, остальные в это время не трогаются
+            for (DbDescriptor descriptor : flushMemtables(getDbDescriptors(type))) {
+                long start = System.nanoTime();
+                descriptor.compactionLock.lock();
+                try {
+                    compact(descriptor, true);
+                } finally {
+                    descriptor.compactionLock.unlock();
+                }
+                descriptor.metrics.record(MetricsListener.Operation.TRUNCATE, start);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * возвращает статистику сжатия таблицы: ход текущего сжатия, сколько места освобождено
+     *
+     * @param type тип объектов таблицы
+     * @return статистика сжатия
+     */
+    public CompactionStats getCompactionStats(Class<?> type) {
+        try {
+            boolean running = false;
+            long copied = 0, total = 0, compactions = 0, lastReclaimed = 0, totalReclaimed = 0, lastMillis = 0;
+            long entries = 0, live = 0, failed = 0;
+            Throwable lastError = null;
+            // для шардированной таблицы значения складываются: последнее сжатие - последнее сжатие каждого шарда
+            for (DbDescriptor descriptor : getDbDescriptors(type)) {
+                Compaction compaction = descriptor.compaction;
+                synchronized (descriptor) {
+                    if (compaction != null) {
+                        running = true;
+                        copied += compaction.copied;
+                        total += compaction.total;
+                    }
+                    compactions += descriptor.compactions;
+                    lastReclaimed += descriptor.lastReclaimedBytes;
+                    totalReclaimed += descriptor.totalReclaimedBytes;
+                    lastMillis += descriptor.lastCompactionMillis;
+                }
+                failed += descriptor.metrics.failedCompactions.sum();
+                if (descriptor.metrics.lastCompactionError != null)
+                    lastError = descriptor.metrics.lastCompactionError;
+                KeyOffsetIndex index = keys.get(descriptor.keyFilePath);
+                entries += descriptor.keyEntries;
+                live += index == null ? 0 : index.size();
+            }
+            double deadRatio = entries == 0 ? 0 : Math.max(0, 1 - (double) live / entries);
+            return new CompactionStats(running, copied, total, compactions, lastReclaimed, totalReclaimed, lastMillis, deadRatio,
+                    failed, lastError);
+        } catch (IOException e) {
             throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return примерная доля устаревших записей в файле с ключами таблицы
+     */
+    double deadRatio(DbDescriptor descriptor) {
+        long entries = descriptor.keyEntries;
+        KeyOffsetIndex index = keys.get(descriptor.keyFilePath);
+        long live = index == null ? 0 : index.size();
+        return entries == 0 ? 0 : Math.max(0, 1 - (double) live / entries);
+    }
+
+    /**
+     * после записи проверяет, не пора ли сжимать таблицу, и если пора, запускает сжатие в фоновом потоке.
+     * таблица из сегментов проверяется при закрытии очередного сегмента: сжимаются только закрытые сегменты
+     *
+     * @param descriptor дескриптор таблицы
+     */
+    private void maybeCompact(DbDescriptor descriptor) {
+        if (options.compactionDeadRatio <= 0 || descriptor.compaction != null)
+            return;
+        if (options.segmentSize > 0) {
+            long rollovers = descriptor.rollovers;
+            if (rollovers == descriptor.compactionRollovers)
+                return;
+            descriptor.compactionRollovers = rollovers;
+        } else {
+            long entries = descriptor.keyEntries;
+            if (entries - descriptor.compactionCheck < COMPACTION_CHECK_INTERVAL)
+                return;
+            descriptor.compactionCheck = entries;
+            if (deadRatio(descriptor) < options.compactionDeadRatio)
+                return;
+        }
+        if (!descriptor.compactionScheduled.compareAndSet(false, true))
+            return;
+
+        synchronized (this) {
+            if (compactionExecutor == null) {
+                compactionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "kvdb-compaction-" + mainDirectory);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            compactionExecutor.execute(() -> {
+                descriptor.compactionScheduled.set(false);
+                if (!descriptor.compactionLock.tryLock())
+                    return;
+                try {
+                    // таблицу могли уже сжать вызовом truncate; сегменты для сжатия выбирает само сжатие
+                    if (options.segmentSize > 0 || deadRatio(descriptor) >= options.compactionDeadRatio)
+                        compact(descriptor, false);
+                } catch (IOException | RuntimeException e) {
+                    // старые файлы остаются рабочими, сжатие повторится после следующих записей.
+                    // ошибку видно в CompactionStats и MXBean таблицы
+                    descriptor.metrics.failedCompactions.increment();
+                    descriptor.metrics.lastCompactionError = e;
+                } finally {
+                    descriptor.compactionLock.unlock();
+                }
+            });
+        }
+    }
+
+    /**
+     * сжимает файлы таблицы, вызывается под compactionLock:
+     * 1. под appendLock запоминается снимок индекса и длина файла с ключами;
+     * 2. выбираются переписываемые сегменты: без сегментов - весь файл с данными,
+     * иначе закрытые сегменты, доля устаревших записей в которых достигла порога; truncate выбирает и дописываемый сегмент,
+     * если в нем есть устаревшие записи, и только тогда закрывает его;
+     * 3. без блокировок актуальные записи снимка из переписываемых сегментов копируются в новый сегмент в порядке смещений,
+     * записи файла с ключами о других сегментах переносятся как есть;
+     * 4. без блокировок догоняются записи, дописанные в файл с ключами за время копирования;
+     * 5. под appendLock и tableLock догоняется остаток хвоста и файлы заменяются
+     *
+     * @param descriptor дескриптор таблицы
+     * @param explicit   true - вызов truncate: сжимаются все сегменты с устаревшими записями, включая дописываемый
+     * @throws IOException
+     */
+    private void compact(DbDescriptor descriptor, boolean explicit) throws IOException {
+        long start = System.currentTimeMillis();
+        boolean segmented = options.segmentSize > 0;
+        long[] oldOffsets;
+        int[] oldKeys;
+        long keyPosition;
+        int activeId;
+        descriptor.lockAppend();
+        try {
+            KeyOffsetIndex index = keys.get(descriptor.keyFilePath);
+            oldOffsets = index == null ? new long[0] : index.sortedOffsets();
+            // ключи раскладываются в том же порядке, что и смещения, смещения разных ключей не совпадают
+            int[] sortedKeys = new int[oldOffsets.length];
+            if (index != null)
+                index.forEach((key, offset) -> sortedKeys[Arrays.binarySearch(oldOffsets, offset)] = key);
+            oldKeys = sortedKeys;
+            keyPosition = descriptor.keyTail;
+            activeId = descriptor.active.id;
+        } finally {
+            descriptor.appendLock.unlock();
+        }
+
+        // truncate переписывает и дописываемый сегмент, если в нем есть устаревшие записи
+        boolean[] victims = segmented
+                ? selectVictims(descriptor, oldOffsets, keyPosition, explicit ? -1 : activeId, explicit ? 0 : options.compactionDeadRatio)
+                : allSegments(descriptor);
+        if (victims == null)
+            return;
+        int segmentId = 0;
+        if (segmented) {
+            descriptor.lockAppend();
+            try {
+                // переписываемый дописываемый сегмент закрывается, записи, дописанные в него после снимка, догоняются
+                if (Compaction.rewrites(victims, Segment.offset(activeId, 0)) && descriptor.active.id == activeId)
+                    rollSegment(descriptor);
+                segmentId = descriptor.newSegmentId();
+            } finally {
+                descriptor.appendLock.unlock();
+            }
+        }
+        int copies = 0;
+        for (long offset : oldOffsets) {
+            if (Compaction.rewrites(victims, offset))
+                copies++;
+        }
+
+        Compaction compaction = new Compaction(segmentId, victims, new File(segmentPath(descriptor.name, segmentId) + ".tmp"),
+                new File(descriptor.keyFilePath.toString() + ".tmp"), newKeyIndex(descriptor.keyFilePath, ".tmp", oldOffsets.length), copies);
+        descriptor.compaction = compaction;
+        boolean swapped = false;
+        try {
+            if (!segmented) {
+                // перезапись на месте во время копирования дала бы разорванную копию записи
+                descriptor.lockAppend();
+                try {
+                    descriptor.compacting = true;
+                } finally {
+                    descriptor.appendLock.unlock();
+                }
+            }
+            // переписываемые сегменты закрыты для записи или только дописываются, поэтому их можно читать без блокировок
+            BlockReader oldData = new BlockReader(descriptor, BlockReader.BLOCK_SIZE);
+            if (copies < oldOffsets.length)
+                keepEntries(descriptor, compaction, oldKeys, keyPosition);
+            for (int i = 0; i < oldOffsets.length; i++) {
+                if (compaction.rewrites(oldOffsets[i])) {
+                    oldData.seek(oldOffsets[i]);
+                    compaction.writeKey(oldKeys[i], compaction.copyRecord(descriptor.codec.read(oldData), descriptor.codec));
+                }
+            }
+
+            do {
+                keyPosition = catchUp(descriptor, compaction, oldData, keyPosition);
+            } while (descriptor.keyFileWriter.length() - keyPosition > LOCKED_CATCH_UP_BYTES);
+
+            descriptor.lockAppend();
+            descriptor.tableLock.writeLock().lock();
+            try {
+                catchUp(descriptor, compaction, oldData, keyPosition);
+                compaction.finish(options.durability != Durability.NONE);
+                long sizeBefore = descriptor.dataBytes() + descriptor.keyTail;
+                swapFiles(descriptor, compaction);
+                swapped = true;
+                long sizeAfter = descriptor.dataBytes() + descriptor.keyTail;
+                synchronized (descriptor) {
+                    descriptor.compactions++;
+                    descriptor.lastReclaimedBytes = sizeBefore - sizeAfter;
+                    descriptor.totalReclaimedBytes += sizeBefore - sizeAfter;
+                    descriptor.lastCompactionMillis = System.currentTimeMillis() - start;
+                }
+            } finally {
+                descriptor.tableLock.writeLock().unlock();
+                descriptor.appendLock.unlock();
+            }
         } finally {
-            lock.writeLock().unlock();
+            descriptor.compaction = null;
+            descriptor.compacting = false;
+            if (!swapped) {
+                compaction.close();
+                compaction.dataFile.delete();
+                compaction.keyFile.delete();
+                if (compaction.index instanceof MappedKeyIndex)
+                    ((MappedKeyIndex) compaction.index).delete();
+            }
+        }
+    }
+
+    /**
+     * @return все сегменты таблицы как переписываемые: сжатие без сегментов переписывает весь файл с данными
+     */
+    private static boolean[] allSegments(DbDescriptor descriptor) {
+        Segment[] segments = descriptor.segments;
+        boolean[] victims = new boolean[segments.length];
+        for (int id = 0; id < segments.length; id++) {
+            victims[id] = segments[id] != null;
         }
+        return victims;
     }
 
     /**
-     * Переписывает указанный файл, оставляя только актуальные значения, а так же файл его ключей
+     * выбирает закрытые сегменты, доля устаревших записей в которых достигла порога.
+     * всего записей сегмента - записи файла с ключами, указывающие в него, актуальных - смещения снимка индекса
      *
-     * @param type        определяет для какой таблицы будет переписан файл (имя файла)
-     * @param descriptor  дескриптор сохраняемого объекта, содержит пути к файлам с данными и ключами
-     *                    и объекты для работы с этими файлами (запись/чтение)
-     * @param newDataFile путь к новому файлу с данными
-     * @param newKeyFile  путь к новому файлу с ключами
+     * @param descriptor  дескриптор таблицы
+     * @param liveOffsets смещения актуальных записей снимка
+     * @param keyPosition длина файла с ключами на момент снимка
+     * @param activeId    номер дописываемого сегмента, он не переписывается; -1 - дописываемый сегмент тоже выбирается
+     * @param threshold   порог доли устаревших записей, 0 - любая устаревшая запись
+     * @return номера переписываемых сегментов или null, если переписывать нечего
      * @throws IOException
-     * @throws InstantiationException
-     * @throws IllegalAccessException
      */
-    private void rewriteFile(Class<?> type, DbDescriptor descriptor, File newDataFile, File newKeyFile) throws IOException, InstantiationException, IllegalAccessException {
-        Object object;
-        Long offset;
+    private boolean[] selectVictims(DbDescriptor descriptor, long[] liveOffsets, long keyPosition,
+                                    int activeId, double threshold) throws IOException {
+        Segment[] segments = descriptor.segments;
+        long[] total = new long[segments.length];
+        long[] live = new long[segments.length];
+        readKeyEntries(descriptor, 0, keyPosition, (key, offset) -> {
+            if (offset >= 0)
+                total[Segment.id(offset)]++;
+        });
+        for (long offset : liveOffsets) {
+            live[Segment.id(offset)]++;
+        }
+        boolean[] victims = new boolean[segments.length];
+        boolean found = false;
+        for (int id = 0; id < segments.length; id++) {
+            long dead = total[id] - live[id];
+            if (id != activeId && segments[id] != null && dead > 0 && dead >= threshold * total[id]) {
+                victims[id] = true;
+                found = true;
+            }
+        }
+        return found ? victims : null;
+    }
 
-        try (RandomAccessFile dataWriter = new RandomAccessFile(newDataFile, "rw");
-             RandomAccessFile keyWriter = new RandomAccessFile(newKeyFile, "rw")) {
-            DbDescriptor tmpDesc = new DbDescriptor(newDataFile.toPath(), dataWriter, newKeyFile.toPath(), keyWriter, descriptor.fields);
-            for (Map.Entry<Integer, Long> entry : keys.get(descriptor.keyFilePath).entrySet()) {
-                if (entry.getValue() < 0)
-                    continue;
-                object = readObjectByOffset(type, entry.getValue(), descriptor);
-                offset = writeObjectToFile(object, tmpDesc);
-                writeKeyToFile(entry.getKey(), offset, tmpDesc);
+    /**
+     * переносит в новый файл с ключами как есть записи снимка, указывающие в непереписываемые сегменты,
+     * в том числе устаревшие: по ним потом считается доля устаревших записей этих сегментов.
+     * ключи, удаленные к моменту снимка, после этого помечаются удаленными
+     *
+     * @param descriptor  дескриптор таблицы
+     * @param compaction  новые файлы таблицы
+     * @param liveKeys    ключи снимка индекса
+     * @param keyPosition длина файла с ключами на момент снимка
+     * @throws IOException
+     */
+    private void keepEntries(DbDescriptor descriptor, Compaction compaction, int[] liveKeys, long keyPosition) throws IOException {
+        int[] sortedKeys = liveKeys.clone();
+        Arrays.sort(sortedKeys);
+        List<Integer> removed = new ArrayList<>();
+        readKeyEntries(descriptor, 0, keyPosition, (key, offset) -> {
+            if (offset >= 0 && !compaction.rewrites(offset)) {
+                compaction.writeKey(key, offset);
+                if (Arrays.binarySearch(sortedKeys, key) < 0)
+                    removed.add(key);
+            }
+        });
+        for (int key : removed) {
+            compaction.writeKey(key, -1);
+        }
+    }
+
+    /**
+     * переносит в новые файлы изменения, записанные в файл с ключами начиная с позиции from
+     *
+     * @param descriptor дескриптор таблицы
+     * @param compaction новые файлы таблицы
+     * @param oldData    чтение переписываемых сегментов
+     * @param from       позиция в старом файле с ключами, с которой начинаются еще не перенесенные записи
+     * @return позиция, до которой записи перенесены
+     * @throws IOException
+     */
+    private long catchUp(DbDescriptor descriptor, Compaction compaction, BlockReader oldData, long from) throws IOException {
+        long end = from + (descriptor.keyFileWriter.length() - from) / KEY_ENTRY_SIZE * KEY_ENTRY_SIZE;
+        readKeyEntries(descriptor, from, end, (key, offset) -> {
+            if (offset < 0) {
+                compaction.writeKey(key, -1);
+            } else if (compaction.rewrites(offset)) {
+                oldData.seek(offset);
+                compaction.writeKey(key, compaction.copyRecord(descriptor.codec.read(oldData), descriptor.codec));
+            } else {
+                compaction.writeKey(key, offset);
+            }
+        });
+        return end;
+    }
+
+    /**
+     * читает записи файла с ключами в диапазоне позиций [from, end) без блокировок: файл только дописывается
+     *
+     * @param descriptor дескриптор таблицы
+     * @param from       позиция первой записи
+     * @param end        позиция после последней записи
+     * @param visitor    обработчик пар 'ключ - смещение' в порядке записи
+     * @throws IOException
+     */
+    private void readKeyEntries(DbDescriptor descriptor, long from, long end, KeyEntryVisitor visitor) throws IOException {
+        FileChannel keyChannel = descriptor.keyFileWriter.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocate(KEY_ENTRY_SIZE * 4096);
+        long position = from;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            while (buffer.hasRemaining()) {
+                if (keyChannel.read(buffer, position + buffer.position()) < 0)
+                    throw new EOFException();
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                visitor.visit(buffer.getInt(), buffer.getLong());
             }
-            for (int i = 0; i < tmpDesc.readers.length; i++) {
-                tmpDesc.readers[i].getReader().close();
+            position += buffer.limit();
+        }
+    }
+
+    private interface KeyEntryVisitor {
+        void visit(int key, long offset) throws IOException;
+    }
+
+    /**
+     * заменяет файлы таблицы новыми, вызывается под appendLock и tableLock на запись:
+     * переписанные сегменты удаляются, новый сегмент и новый файл с ключами занимают их место
+     *
+     * @param descriptor дескриптор таблицы
+     * @param compaction готовые новые файлы
+     * @throws IOException
+     */
+    private void swapFiles(DbDescriptor descriptor, Compaction compaction) throws IOException {
+        descriptor.sync.close();
+        // без сегментов переписывается и дописываемый файл
+        boolean activeRewritten = compaction.rewrites(Segment.offset(descriptor.active.id, 0));
+        // закрытие и удаление переписанных сегментов и старого файла с ключами
+        for (int id = 0; id < compaction.victims.length; id++) {
+            if (!compaction.victims[id])
+                continue;
+            Segment segment = descriptor.segment(id);
+            descriptor.removeSegment(id);
+            segment.close();
+            RandomAccessFile writer = filesInDirectory.remove(segment.path);
+            if (writer != null)
+                writer.close();
+            segment.path.toFile().delete();
+        }
+        filesInDirectory.remove(descriptor.keyFilePath).close();
+        descriptor.keyFilePath.toFile().delete();
+        // новый сегмент занимает свое место, пустой не нужен, если запись идет в другой сегмент
+        Path segmentPath = segmentPath(descriptor.name, compaction.segmentId);
+        if (compaction.isEmpty() && !activeRewritten) {
+            compaction.dataFile.delete();
+        } else {
+            compaction.dataFile.renameTo(segmentPath.toFile());
+            Segment segment = new Segment(compaction.segmentId, segmentPath, options.mappedReads);
+            descriptor.putSegment(segment);
+            if (activeRewritten)
+                descriptor.activate(segment, openFile(segmentPath));
+        }
+        compaction.keyFile.renameTo(descriptor.keyFilePath.toFile());
+        KeyOffsetIndex oldIndex = keys.put(descriptor.keyFilePath, compaction.index);
+        if (oldIndex instanceof MappedKeyIndex)
+            ((MappedKeyIndex) oldIndex).discard();
+        if (compaction.index instanceof MappedKeyIndex)
+            ((MappedKeyIndex) compaction.index).moveTo(mappedIndexPath(descriptor.keyFilePath));
+        // открытие новых RAF в том же дескрипторе, его блокировки могут ждать другие потоки
+        descriptor.reopenKeys(openFile(descriptor.keyFilePath));
+        attachFileServices(descriptor);
+        rewriteSecondaryIndexes(descriptor);
+        // смещения переписанных объектов изменились
+        if (descriptor.recordCache != null)
+            descriptor.recordCache.clear();
+        descriptor.keyEntries = compaction.keyEntries();
+        descriptor.compactionCheck = descriptor.keyEntries;
+        descriptor.epoch++;
+    }
+
+    /**
+     * переписывает журналы вторичных индексов таблицы со смещениями из переписанного файла с данными
+     *
+     * @param descriptor дескриптор таблицы с уже замененными файлами
+     * @throws IOException
+     */
+    private void rewriteSecondaryIndexes(DbDescriptor descriptor) throws IOException {
+        KeyOffsetIndex index = keys.get(descriptor.keyFilePath);
+        for (SecondaryIndex secondaryIndex : descriptor.secondaryIndexes.values()) {
+            Path indexPath = secondaryIndexPath(descriptor.name, secondaryIndex.field);
+            File newIndexFile = new File(indexPath.toString() + ".tmp");
+            try (RandomAccessFile indexWriter = new RandomAccessFile(newIndexFile, "rw")) {
+                ByteArrayOutputStream entries = new ByteArrayOutputStream();
+                secondaryIndex.writeAll(index, new DataOutputStream(entries));
+                indexWriter.write(entries.toByteArray());
             }
-            tmpDesc.dbFileWriter.close();
-            tmpDesc.keyFileWriter.close();
+            filesInDirectory.remove(indexPath).close();
+            indexPath.toFile().delete();
+            newIndexFile.renameTo(indexPath.toFile());
+            secondaryIndex.log = openFile(indexPath);
         }
     }
 }
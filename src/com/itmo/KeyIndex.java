@@ -0,0 +1,189 @@
+package com.itmo;
+
+import java.util.Arrays;
+
+/**
+ * индекс 'ключ - смещение' одной таблицы.
+ * хранит ключи и смещения в примитивных массивах с открытой адресацией (линейное пробирование),
+ * поэтому не создает объектов Integer, Long и HashMap.Node на каждый ключ.
+ * удаленный ключ остается в таблице со смещением -1, так же как он записан в файле с ключами
+ */
+public class KeyIndex {
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.6f;
+    private static final long FREE = Long.MIN_VALUE;
+
+    private int[] keys;
+    private long[] offsets;
+    private int mask;
+    private int threshold;
+    private int used;
+    private int live;
+
+    public KeyIndex() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedKeys ожидаемое количество ключей, по нему выбирается начальный размер таблицы
+     */
+    public KeyIndex(int expectedKeys) {
+        allocate(tableSizeFor((int) Math.min(Integer.MAX_VALUE, (long) (expectedKeys / LOAD_FACTOR) + 1)));
+    }
+
+    /**
+     * находит смещение по ключу
+     *
+     * @param key ключ объекта
+     * @return возвращает смещение или -1, если ключа нет в индексе или он удален
+     */
+    public long get(int key) {
+        int slot = hash(key) & mask;
+        long offset;
+        while ((offset = offsets[slot]) != FREE) {
+            if (keys[slot] == key)
+                return offset;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * сохраняет смещение по ключу, отрицательное смещение помечает ключ удаленным
+     *
+     * @param key    ключ объекта
+     * @param offset смещение в файле с данными
+     */
+    public void put(int key, long offset) {
+        int slot = hash(key) & mask;
+        int tombstone = -1;
+        long current;
+        while ((current = offsets[slot]) != FREE) {
+            if (keys[slot] == key) {
+                if (current < 0 && offset >= 0)
+                    live++;
+                else if (current >= 0 && offset < 0)
+                    live--;
+                offsets[slot] = offset;
+                return;
+            }
+            if (current < 0 && tombstone < 0)
+                tombstone = slot;
+            slot = (slot + 1) & mask;
+        }
+
+        if (offset < 0)
+            return;
+        if (tombstone >= 0) {
+            // ячейку удаленного ключа можно занять, цепочка пробирования при этом не рвется
+            keys[tombstone] = key;
+            offsets[tombstone] = offset;
+            live++;
+            return;
+        }
+
+        keys[slot] = key;
+        offsets[slot] = offset;
+        live++;
+        if (++used > threshold)
+            // если большая часть ячеек занята удаленными ключами, достаточно перестроить таблицу того же размера
+            resize(live * 2 < used ? offsets.length : offsets.length << 1);
+    }
+
+    /**
+     * помечает ключ удаленным (смещение -1)
+     *
+     * @param key удаляемый ключ
+     */
+    public void remove(int key) {
+        int slot = hash(key) & mask;
+        long offset;
+        while ((offset = offsets[slot]) != FREE) {
+            if (keys[slot] == key) {
+                if (offset >= 0) {
+                    offsets[slot] = -1;
+                    live--;
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @return количество ключей, у которых есть актуальные данные
+     */
+    public int size() {
+        return live;
+    }
+
+    /**
+     * @return количество ячеек таблицы, используется для обхода вместе с {@link #keyAt} и {@link #offsetAt}
+     */
+    public int capacity() {
+        return offsets.length;
+    }
+
+    public int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * @return смещение, записанное в ячейке, или -1, если ячейка пустая или ключ удален
+     */
+    public long offsetAt(int slot) {
+        long offset = offsets[slot];
+        return offset == FREE ? -1 : offset;
+    }
+
+    /**
+     * @return примерный объем памяти, занимаемый индексом, в байтах
+     */
+    public long memoryUsage() {
+        // заголовки объекта и двух массивов + сами массивы
+        return 32 + 2 * 16 + (long) keys.length * Integer.BYTES + (long) offsets.length * Long.BYTES;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        long[] oldOffsets = offsets;
+        allocate(capacity);
+        for (int i = 0; i < oldOffsets.length; i++) {
+            // удаленные ключи при перестроении не переносим: get для них и так вернет -1
+            if (oldOffsets[i] >= 0)
+                insertNew(oldKeys[i], oldOffsets[i]);
+        }
+    }
+
+    private void insertNew(int key, long offset) {
+        int slot = hash(key) & mask;
+        while (offsets[slot] != FREE)
+            slot = (slot + 1) & mask;
+        keys[slot] = key;
+        offsets[slot] = offset;
+        used++;
+        live++;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        offsets = new long[capacity];
+        Arrays.fill(offsets, FREE);
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+        used = 0;
+        live = 0;
+    }
+
+    private static int tableSizeFor(int n) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < n && capacity < (1 << 30))
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
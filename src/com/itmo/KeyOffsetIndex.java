@@ -0,0 +1,57 @@
+package com.itmo;
+
+import java.io.IOException;
+
+/**
+ * индекс 'ключ - смещение' одной таблицы: в куче ({@link StripedKeyIndex})
+ * или в отображенном в память файле ({@link MappedKeyIndex})
+ */
+interface KeyOffsetIndex {
+    /**
+     * @return возвращает смещение по ключу или -1, если ключа нет в индексе или он удален
+     */
+    long get(int key);
+
+    /**
+     * сохраняет смещение по ключу, отрицательное смещение помечает ключ удаленным
+     */
+    void put(int key, long offset);
+
+    /**
+     * помечает ключ удаленным (смещение -1)
+     */
+    void remove(int key);
+
+    /**
+     * @return количество ключей, у которых есть актуальные данные
+     */
+    int size();
+
+    /**
+     * @return возвращает смещения всех актуальных записей таблицы в порядке возрастания
+     */
+    long[] sortedOffsets();
+
+    /**
+     * передает обработчику все актуальные пары 'ключ - смещение'
+     */
+    void forEach(Visitor visitor);
+
+    /**
+     * @return примерный объем памяти в куче, занимаемый индексом, в байтах
+     */
+    long memoryUsage();
+
+    /**
+     * освобождает ресурсы индекса при закрытии таблицы
+     *
+     * @param keyFileLength длина файла с ключами, до которой индекс согласован с ним
+     * @throws IOException
+     */
+    default void close(long keyFileLength) throws IOException {
+    }
+
+    interface Visitor {
+        void visit(int key, long offset);
+    }
+}
@@ -0,0 +1,58 @@
+package com.itmo;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * гистограмма длительностей с корзинами по степеням двойки наносекунд.
+ * запись - несколько инкрементов LongAdder без блокировок, поэтому ее можно оставлять включенной под нагрузкой.
+ * перцентили оцениваются по верхней границе корзины, то есть с точностью до двух раз
+ */
+class LatencyHistogram {
+    // корзина i хранит длительности [2^(i-1), 2^i) нс, последняя - все, что дольше 2^46 нс (~20 часов)
+    private static final int BUCKETS = 48;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        buckets[Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(nanos))].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    LatencyStats snapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        long max = maxNanos.get();
+        return new LatencyStats(count.sum(), totalNanos.sum(),
+                percentile(counts, total, 0.5, max), percentile(counts, total, 0.99, max),
+                percentile(counts, total, 0.999, max), max);
+    }
+
+    private static long percentile(long[] counts, long total, double fraction, long max) {
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0)
+                return Math.min(max, i == 0 ? 0 : 1L << i);
+        }
+        return max;
+    }
+}
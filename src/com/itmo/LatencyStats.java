@@ -0,0 +1,70 @@
+package com.itmo;
+
+/**
+ * снимок гистограммы длительностей одной операции
+ */
+public class LatencyStats {
+    private final long count;
+    private final long totalNanos;
+    private final long p50Nanos;
+    private final long p99Nanos;
+    private final long p999Nanos;
+    private final long maxNanos;
+
+    LatencyStats(long count, long totalNanos, long p50Nanos, long p99Nanos, long p999Nanos, long maxNanos) {
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.p50Nanos = p50Nanos;
+        this.p99Nanos = p99Nanos;
+        this.p999Nanos = p999Nanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /**
+     * @return количество измеренных операций
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return средняя длительность в микросекундах
+     */
+    public double getMeanMicros() {
+        return count == 0 ? 0 : totalNanos / 1000.0 / count;
+    }
+
+    /**
+     * @return медиана в микросекундах (с точностью до двух раз)
+     */
+    public double getP50Micros() {
+        return p50Nanos / 1000.0;
+    }
+
+    /**
+     * @return 99-й перцентиль в микросекундах (с точностью до двух раз)
+     */
+    public double getP99Micros() {
+        return p99Nanos / 1000.0;
+    }
+
+    /**
+     * @return 99.9-й перцентиль в микросекундах (с точностью до двух раз)
+     */
+    public double getP999Micros() {
+        return p999Nanos / 1000.0;
+    }
+
+    /**
+     * @return максимальная длительность в микросекундах
+     */
+    public double getMaxMicros() {
+        return maxNanos / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, mean=%.1fus, p50=%.1fus, p99=%.1fus, p999=%.1fus, max=%.1fus",
+                count, getMeanMicros(), getP50Micros(), getP99Micros(), getP999Micros(), getMaxMicros());
+    }
+}
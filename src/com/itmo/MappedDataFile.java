@@ -0,0 +1,312 @@
+package com.itmo;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * файл с данными, отображенный в память кусками по 1 Гб.
+ * файлы больше 2 Гб отображаются несколькими кусками, значение, попавшее на границу кусков, собирается по байтам.
+ * отображение расширяется лениво: запись только сообщает новую длину файла. отобразить часть за концом файла нельзя,
+ * поэтому хвост, дописанный после отображения, читается позиционно через канал, а последний кусок переотображается,
+ * только когда хвост вырос на 1/8 отображения (но не меньше 64 КБ): число отображений растет как логарифм длины файла,
+ * а не с каждым чтением недавно дописанной записи. старые отображения освобождает сборщик мусора
+ */
+class MappedDataFile implements Closeable {
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = (int) (CHUNK_SIZE - 1);
+    private static final long MIN_REMAP_BYTES = 1 << 16;
+
+    private final FileChannel channel;
+    private volatile Mapping mapping = new Mapping(new MappedByteBuffer[0], 0);
+    private volatile long length;
+
+    MappedDataFile(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        length = channel.size();
+    }
+
+    /**
+     * сообщает, что в файл дописаны данные и он вырос до указанной длины
+     *
+     * @param newLength новая длина файла
+     */
+    void extend(long newLength) {
+        if (newLength > length)
+            length = newLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @param end позиция после последнего читаемого байта
+     * @return отображение, в котором лежат байты до end, или null, если их нужно читать через канал
+     * @throws EOFException если end за концом файла
+     */
+    private Mapping mappingFor(long end) throws IOException {
+        Mapping current = mapping;
+        if (end <= current.length)
+            return current;
+        long target = length;
+        if (end > target)
+            throw new EOFException();
+        if (current.length > 0 && target - current.length < Math.max(MIN_REMAP_BYTES, current.length >>> 3))
+            return null;
+        return remap(end);
+    }
+
+    /**
+     * читает байты за концом отображения через канал
+     *
+     * @param buffer   буфер, заполняется до limit
+     * @param position позиция в файле
+     */
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException();
+        }
+    }
+
+    private synchronized Mapping remap(long end) throws IOException {
+        Mapping current = mapping;
+        if (end <= current.length)
+            return current;
+        long target = length;
+
+        int count = (int) ((target - 1) >>> CHUNK_SHIFT) + 1;
+        MappedByteBuffer[] chunks = Arrays.copyOf(current.chunks, count);
+        // последний кусок мог быть отображен не полностью, его отображаем заново
+        for (int i = (int) (current.length >>> CHUNK_SHIFT); i < count; i++) {
+            long start = (long) i << CHUNK_SHIFT;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, target - start));
+        }
+        mapping = new Mapping(chunks, target);
+        return mapping;
+    }
+
+    private static class Mapping {
+        final MappedByteBuffer[] chunks;
+        final long length;
+
+        Mapping(MappedByteBuffer[] chunks, long length) {
+            this.chunks = chunks;
+            this.length = length;
+        }
+    }
+
+    /**
+     * читает значения из отображенных сегментов таблицы, начиная с заданного составного смещения ({@link Segment}).
+     * использует только абсолютные операции над буферами, поэтому разные Input можно использовать из разных потоков
+     */
+    static class Input implements SeekableInput {
+        private DbDescriptor descriptor;
+        private MappedDataFile file;
+        private int segmentId = -1;
+        // позиция внутри текущего сегмента
+        private long position;
+        // значение за концом отображения, прочитанное через канал
+        private final ByteBuffer tail = ByteBuffer.allocate(Long.BYTES);
+        // индекс значения в буфере, который вернул chunk
+        private int index;
+
+        Input() {
+        }
+
+        Input(DbDescriptor descriptor) {
+            this.descriptor = descriptor;
+        }
+
+        /**
+         * переключает чтение на сегменты таблицы; после сжатия сегменты могли смениться
+         */
+        void attach(DbDescriptor descriptor) {
+            this.descriptor = descriptor;
+            this.file = null;
+            this.segmentId = -1;
+        }
+
+        @Override
+        public void seek(long offset) {
+            int id = Segment.id(offset);
+            if (id != segmentId) {
+                file = descriptor.segment(id).mappedFile;
+                segmentId = id;
+            }
+            this.position = Segment.position(offset);
+        }
+
+        long position() {
+            return Segment.offset(segmentId, position);
+        }
+
+        private Mapping mappingFor(long end) throws IOException {
+            if (file == null)
+                seek(0);
+            return file.mappingFor(end);
+        }
+
+        /**
+         * @return буфер, в котором с индекса {@link #index} целиком лежат size байт начиная с текущей позиции:
+         * кусок отображения или значение, прочитанное через канал; null, если значение на границе кусков
+         */
+        private ByteBuffer chunk(int size) throws IOException {
+            Mapping current = mappingFor(position + size);
+            if (current == null) {
+                tail.clear().limit(size);
+                file.read(tail, position);
+                index = 0;
+                return tail;
+            }
+            if ((position & CHUNK_MASK) + size > CHUNK_SIZE)
+                return null;
+            index = (int) (position & CHUNK_MASK);
+            return current.chunks[(int) (position >>> CHUNK_SHIFT)];
+        }
+
+        @Override
+        public void readFully(byte[] b) throws IOException {
+            readFully(b, 0, b.length);
+        }
+
+        @Override
+        public void readFully(byte[] b, int off, int len) throws IOException {
+            Mapping current = mappingFor(position + len);
+            if (current == null) {
+                file.read(ByteBuffer.wrap(b, off, len).slice(), position);
+                position += len;
+                return;
+            }
+            while (len > 0) {
+                int index = (int) (position >>> CHUNK_SHIFT);
+                int start = (int) (position & CHUNK_MASK);
+                int count = (int) Math.min(len, CHUNK_SIZE - start);
+                current.chunks[index].get(start, b, off, count);
+                position += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public int skipBytes(int n) {
+            position += n;
+            return n;
+        }
+
+        @Override
+        public boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            ByteBuffer chunk = chunk(Byte.BYTES);
+            byte value = chunk.get(index);
+            position += Byte.BYTES;
+            return value;
+        }
+
+        @Override
+        public int readUnsignedByte() throws IOException {
+            return readByte() & 0xFF;
+        }
+
+        @Override
+        public short readShort() throws IOException {
+            ByteBuffer chunk = chunk(Short.BYTES);
+            if (chunk == null)
+                return (short) ((readUnsignedByte() << 8) | readUnsignedByte());
+            short value = chunk.getShort(index);
+            position += Short.BYTES;
+            return value;
+        }
+
+        @Override
+        public int readUnsignedShort() throws IOException {
+            return readShort() & 0xFFFF;
+        }
+
+        @Override
+        public char readChar() throws IOException {
+            return (char) readShort();
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            ByteBuffer chunk = chunk(Integer.BYTES);
+            if (chunk == null)
+                return (readUnsignedShort() << 16) | readUnsignedShort();
+            int value = chunk.getInt(index);
+            position += Integer.BYTES;
+            return value;
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            ByteBuffer chunk = chunk(Long.BYTES);
+            if (chunk == null)
+                return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+            long value = chunk.getLong(index);
+            position += Long.BYTES;
+            return value;
+        }
+
+        @Override
+        public float readFloat() throws IOException {
+            return Float.intBitsToFloat(readInt());
+        }
+
+        @Override
+        public double readDouble() throws IOException {
+            return Double.longBitsToDouble(readLong());
+        }
+
+        /**
+         * читает строку байт до '\n', '\r' или "\r\n", как {@link DataInputStream#readLine()}: байт считается символом
+         *
+         * @return строка без конца строки или null, если файл уже кончился
+         */
+        @Override
+        public String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                int c;
+                try {
+                    c = readUnsignedByte();
+                } catch (EOFException e) {
+                    return line.length() == 0 ? null : line.toString();
+                }
+                if (c == '\n')
+                    return line.toString();
+                if (c == '\r') {
+                    try {
+                        if (readUnsignedByte() != '\n')
+                            position--;
+                    } catch (EOFException e) {
+                        // файл кончился сразу после '\r'
+                    }
+                    return line.toString();
+                }
+                line.append((char) c);
+            }
+        }
+
+        @Override
+        public String readUTF() throws IOException {
+            return DataInputStream.readUTF(this);
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package com.itmo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * индекс 'ключ - смещение' в файле, отображенном в память: хеш-таблица с открытой адресацией,
+ * которая меняется на месте при каждой записи. в куче почти ничего не хранится, а при открытии базы
+ * файл просто отображается, если при прошлом закрытии он был сохранен целиком (флаг clean в заголовке)
+ * и покрывает весь файл с ключами. иначе (например, после сбоя) индекс заново строится по файлу с ключами,
+ * который остается журналом изменений.
+ * <p>
+ * формат: заголовок 64 байта, затем ячейки по 16 байт - ключ (int), 4 байта выравнивания и значение (long):
+ * 0 - свободная ячейка, 1 - удаленный ключ, иначе смещение + 2. поэтому расширенный нулями файл - пустая таблица.
+ * <p>
+ * таблица одна на весь индекс и защищена одной блокировкой: запись ключа ждет всех поисков, в отличие от
+ * {@link StripedKeyIndex} с 16 полосами. полосы здесь не помогли бы: линейное пробирование переходит через их границы,
+ * а расширение переписывает весь файл. индекс в памяти включается по умолчанию, отображенный - ради быстрого открытия
+ * больших таблиц, когда запись ключей не упирается в поиск.
+ * <p>
+ * отображения Java освобождает только сборщик мусора. после расширения и закрытия ссылки на старые отображения
+ * сбрасываются, но сама память остается отображенной до сборки; на Windows файл с живым отображением
+ * нельзя заменить или удалить, поэтому там расширение и удаление индекса могут не удаться
+ */
+class MappedKeyIndex implements KeyOffsetIndex {
+    private static final int MAGIC = 0x4B564858; // KVHX
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 16;
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final long MIN_CAPACITY = 1024;
+    private static final double LOAD_FACTOR = 0.6;
+
+    private static final int MAGIC_AT = 0;
+    private static final int VERSION_AT = 4;
+    private static final int CAPACITY_AT = 8;
+    private static final int USED_AT = 16;
+    private static final int LIVE_AT = 24;
+    private static final int KEY_FILE_LENGTH_AT = 32;
+    private static final int CLEAN_AT = 40;
+
+    private static final long FREE = 0;
+    private static final long REMOVED = 1;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Path path;
+    private FileChannel channel;
+    private MappedByteBuffer[] chunks;
+    private long capacity;
+    private long mask;
+    private long used;
+    private long live;
+
+    private MappedKeyIndex(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * открывает индекс таблицы. если файл индекса сохранен целиком и согласован с файлом с ключами,
+     * он только отображается в память, иначе строится заново по файлу с ключами
+     *
+     * @param path        файл индекса
+     * @param keyFilePath файл с ключами таблицы
+     * @return открытый индекс
+     * @throws IOException
+     */
+    static MappedKeyIndex open(Path path, Path keyFilePath) throws IOException {
+        long keyFileLength = Files.exists(keyFilePath) ? Files.size(keyFilePath) : 0;
+        MappedKeyIndex index = new MappedKeyIndex(path);
+        if (Files.exists(path) && index.openExisting(keyFileLength))
+            return index;
+
+        long entries = keyFileLength / (Integer.BYTES + Long.BYTES);
+        index.allocate(path, capacityFor(entries));
+        if (keyFileLength > 0) {
+            try (FileChannel keys = FileChannel.open(keyFilePath, StandardOpenOption.READ)) {
+                index.replay(keys, keyFileLength);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * создает пустой индекс для новой таблицы
+     */
+    static MappedKeyIndex create(Path path, long expectedKeys) throws IOException {
+        MappedKeyIndex index = new MappedKeyIndex(path);
+        index.allocate(path, capacityFor(expectedKeys));
+        return index;
+    }
+
+    private boolean openExisting(long keyFileLength) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+        }
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt(MAGIC_AT) != MAGIC || header.getInt(VERSION_AT) != VERSION
+                || header.getInt(CLEAN_AT) != 1 || header.getLong(KEY_FILE_LENGTH_AT) != keyFileLength
+                || channel.size() != HEADER_SIZE + header.getLong(CAPACITY_AT) * SLOT_SIZE) {
+            channel.close();
+            return false;
+        }
+        map(header.getLong(CAPACITY_AT));
+        used = header.getLong(USED_AT);
+        live = header.getLong(LIVE_AT);
+        markDirty();
+        return true;
+    }
+
+    private void allocate(Path target, long newCapacity) throws IOException {
+        channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        channel.truncate(0);
+        // файл расширяется нулями, то есть свободными ячейками
+        channel.write(ByteBuffer.allocate(1), HEADER_SIZE + newCapacity * SLOT_SIZE - 1);
+        map(newCapacity);
+        used = 0;
+        live = 0;
+        chunks[0].putInt(MAGIC_AT, MAGIC);
+        chunks[0].putInt(VERSION_AT, VERSION);
+        chunks[0].putLong(CAPACITY_AT, newCapacity);
+        markDirty();
+    }
+
+    private void map(long newCapacity) throws IOException {
+        capacity = newCapacity;
+        mask = newCapacity - 1;
+        long size = HEADER_SIZE + newCapacity * SLOT_SIZE;
+        MappedByteBuffer[] mapped = new MappedByteBuffer[(int) ((size - 1) >>> CHUNK_SHIFT) + 1];
+        for (int i = 0; i < mapped.length; i++) {
+            long start = (long) i << CHUNK_SHIFT;
+            mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(CHUNK_SIZE, size - start));
+        }
+        chunks = mapped;
+    }
+
+    /**
+     * пока индекс открыт, он считается несохраненным: после сбоя его придется строить заново
+     */
+    private void markDirty() {
+        chunks[0].putInt(CLEAN_AT, 0);
+        chunks[0].force();
+    }
+
+    private void replay(FileChannel keys, long length) throws IOException {
+        int entrySize = Integer.BYTES + Long.BYTES;
+        ByteBuffer buffer = ByteBuffer.allocate(entrySize * (1 << 16));
+        long end = length / entrySize * entrySize;
+        long position = 0;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            while (buffer.hasRemaining()) {
+                if (keys.read(buffer, position + buffer.position()) < 0)
+                    break;
+            }
+            buffer.flip();
+            if (buffer.remaining() < entrySize)
+                break;
+            while (buffer.remaining() >= entrySize) {
+                putUnlocked(buffer.getInt(), buffer.getLong());
+            }
+            position += buffer.limit();
+        }
+    }
+
+    @Override
+    public long get(int key) {
+        lock.readLock().lock();
+        try {
+            long slot = hash(key) & mask;
+            long value;
+            while ((value = valueAt(slot)) != FREE) {
+                if (keyAt(slot) == key)
+                    return value - 2;
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(int key, long offset) {
+        lock.writeLock().lock();
+        try {
+            putUnlocked(key, offset);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(int key) {
+        put(key, -1);
+    }
+
+    private void putUnlocked(int key, long offset) throws IOException {
+        long value = offset < 0 ? REMOVED : offset + 2;
+        long slot = hash(key) & mask;
+        long current;
+        while ((current = valueAt(slot)) != FREE) {
+            if (keyAt(slot) == key) {
+                if (current != REMOVED && value == REMOVED)
+                    live--;
+                else if (current == REMOVED && value != REMOVED)
+                    live++;
+                setValue(slot, value);
+                writeCounters();
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        // удаление отсутствующего ключа ничего не меняет
+        if (value == REMOVED)
+            return;
+        if (used + 1 > capacity * LOAD_FACTOR) {
+            resize();
+            putUnlocked(key, offset);
+            return;
+        }
+        setKey(slot, key);
+        setValue(slot, value);
+        used++;
+        live++;
+        writeCounters();
+    }
+
+    /**
+     * переносит живые ключи в новый файл большего размера (удаленные ключи отбрасываются) и заменяет им старый
+     */
+    private void resize() throws IOException {
+        long newCapacity = live * 2 < used ? capacity : capacity * 2;
+        Path tmp = Paths.get(path.toString() + ".tmp");
+        MappedKeyIndex resized = new MappedKeyIndex(tmp);
+        resized.allocate(tmp, newCapacity);
+        for (long slot = 0; slot < capacity; slot++) {
+            long value = valueAt(slot);
+            if (value != FREE && value != REMOVED)
+                resized.putUnlocked(keyAt(slot), value - 2);
+        }
+        // старые отображения больше не нужны, сборщик мусора может их освободить до замены файла
+        chunks = null;
+        channel.close();
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        channel = resized.channel;
+        chunks = resized.chunks;
+        capacity = resized.capacity;
+        mask = resized.mask;
+        used = resized.used;
+        live = resized.live;
+    }
+
+    /**
+     * переносит файл индекса на новое место (после замены файлов таблицы при сжатии)
+     */
+    void moveTo(Path target) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Files.move(path, target, StandardCopyOption.REPLACE_EXISTING);
+            path = target;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return (int) Math.min(Integer.MAX_VALUE, live);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long[] sortedOffsets() {
+        lock.readLock().lock();
+        try {
+            long[] offsets = new long[(int) live];
+            int count = 0;
+            for (long slot = 0; slot < capacity; slot++) {
+                long value = valueAt(slot);
+                if (value != FREE && value != REMOVED)
+                    offsets[count++] = value - 2;
+            }
+            Arrays.sort(offsets, 0, count);
+            return count == offsets.length ? offsets : Arrays.copyOf(offsets, count);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        lock.readLock().lock();
+        try {
+            for (long slot = 0; slot < capacity; slot++) {
+                long value = valueAt(slot);
+                if (value != FREE && value != REMOVED)
+                    visitor.visit(keyAt(slot), value - 2);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return объем служебных объектов в куче, сама таблица лежит в отображенном файле и не учитывается
+     */
+    @Override
+    public long memoryUsage() {
+        MappedByteBuffer[] mapped = chunks;
+        return 64 + 16L * (mapped == null ? 0 : mapped.length);
+    }
+
+    /**
+     * сбрасывает таблицу на диск и отмечает файл сохраненным целиком, после этого индекс нельзя использовать
+     *
+     * @param keyFileLength длина файла с ключами, которой соответствует индекс
+     * @throws IOException
+     */
+    @Override
+    public void close(long keyFileLength) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!channel.isOpen())
+                return;
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+            chunks[0].putLong(KEY_FILE_LENGTH_AT, keyFileLength);
+            chunks[0].putInt(CLEAN_AT, 1);
+            chunks[0].force();
+            chunks = null;
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * закрывает индекс, не отмечая его сохраненным (например, когда файл индекса удаляется)
+     */
+    void discard() throws IOException {
+        lock.writeLock().lock();
+        try {
+            chunks = null;
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * закрывает индекс и удаляет его файл
+     */
+    void delete() throws IOException {
+        discard();
+        Files.deleteIfExists(path);
+    }
+
+    private void writeCounters() {
+        chunks[0].putLong(USED_AT, used);
+        chunks[0].putLong(LIVE_AT, live);
+    }
+
+    private int keyAt(long slot) {
+        long position = HEADER_SIZE + slot * SLOT_SIZE;
+        return chunks[(int) (position >>> CHUNK_SHIFT)].getInt((int) (position & (CHUNK_SIZE - 1)));
+    }
+
+    private long valueAt(long slot) {
+        long position = HEADER_SIZE + slot * SLOT_SIZE + Long.BYTES;
+        return chunks[(int) (position >>> CHUNK_SHIFT)].getLong((int) (position & (CHUNK_SIZE - 1)));
+    }
+
+    private void setKey(long slot, int key) {
+        long position = HEADER_SIZE + slot * SLOT_SIZE;
+        chunks[(int) (position >>> CHUNK_SHIFT)].putInt((int) (position & (CHUNK_SIZE - 1)), key);
+    }
+
+    private void setValue(long slot, long value) {
+        long position = HEADER_SIZE + slot * SLOT_SIZE + Long.BYTES;
+        chunks[(int) (position >>> CHUNK_SHIFT)].putLong((int) (position & (CHUNK_SIZE - 1)), value);
+    }
+
+    private static long capacityFor(long expectedKeys) {
+        long needed = Math.max(MIN_CAPACITY, (long) (expectedKeys / LOAD_FACTOR) + 1);
+        return Long.highestOneBit(needed - 1) << 1;
+    }
+
+    private static long hash(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & 0xFFFFFFFFL;
+    }
+}
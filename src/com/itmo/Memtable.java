@@ -0,0 +1,165 @@
+package com.itmo;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * отложенные изменения таблицы в режиме записи в фоне ({@link DbOptions#writeBehind(long, long)}).
+ * add/update/remove кладут закодированную запись в упорядоченную по ключам таблицу в памяти и сразу возвращаются,
+ * фоновый поток пишет накопленное в файлы таблицы одним пакетом. пока пакет пишется, его записи видны читателям
+ * во второй таблице (flushing). когда объем записей в памяти достигает предела, запись ждет окончания сброса.
+ * если сброс не удался, записи таблицы получают его ошибку, пока следующий сброс не пройдет успешно
+ */
+class Memtable {
+    // метка удаления ключа, сравнивается по ссылке
+    static final byte[] REMOVED = new byte[0];
+    // примерные накладные расходы на одну запись в памяти
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final long maxBytes;
+    // ставит сброс таблицы в очередь фонового потока
+    private final Runnable flusher;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // один сброс таблицы за раз
+    final Lock flushLock = new ReentrantLock();
+
+    private volatile ConcurrentSkipListMap<Integer, byte[]> entries = new ConcurrentSkipListMap<>();
+    private volatile ConcurrentSkipListMap<Integer, byte[]> flushing = new ConcurrentSkipListMap<>();
+    // объем записей в обеих таблицах и в той, что сейчас пишется
+    private long bytes;
+    private long flushingBytes;
+    // ошибка последнего неудавшегося сброса
+    private volatile Throwable failure;
+
+    /**
+     * @param maxBytes предел объема записей в памяти, сброс начинается при заполнении наполовину
+     * @param flusher  ставит сброс таблицы в очередь фонового потока
+     */
+    Memtable(long maxBytes, Runnable flusher) {
+        this.maxBytes = maxBytes;
+        this.flusher = flusher;
+    }
+
+    /**
+     * сохраняет запись ключа, ждет, пока в памяти не освободится место
+     *
+     * @param key    ключ объекта
+     * @param record закодированный объект или {@link #REMOVED}
+     * @throws IOException          если последний сброс не удался
+     * @throws InterruptedException
+     */
+    void put(int key, byte[] record) throws IOException, InterruptedException {
+        long size = record.length + ENTRY_OVERHEAD;
+        boolean flush;
+        synchronized (this) {
+            checkFailure();
+            while (bytes >= maxBytes) {
+                requestFlush();
+                wait();
+                checkFailure();
+            }
+            byte[] previous = entries.put(key, record);
+            bytes += size - (previous == null ? 0 : previous.length + ENTRY_OVERHEAD);
+            flush = bytes >= maxBytes / 2;
+        }
+        if (flush)
+            requestFlush();
+    }
+
+    /**
+     * @return запись ключа, {@link #REMOVED} для удаленного ключа или null, если изменений ключа в памяти нет
+     */
+    byte[] get(int key) {
+        byte[] record = entries.get(key);
+        return record != null ? record : flushing.get(key);
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable failure = this.failure;
+        if (failure != null)
+            throw new IOException("Background flush failed", failure);
+    }
+
+    /**
+     * ставит сброс в очередь, если он еще не поставлен
+     *
+     * @throws RejectedExecutionException если фоновый поток уже остановлен
+     */
+    void requestFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                flusher.run();
+            } catch (RejectedExecutionException e) {
+                flushScheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * начинает сброс, вызывается под flushLock: накопленные записи переходят в таблицу flushing,
+     * новые записи идут в пустую таблицу
+     *
+     * @return записи для сброса в порядке ключей
+     */
+    synchronized Map<Integer, byte[]> beginFlush() {
+        flushScheduled.set(false);
+        // сначала flushing: читатель, не нашедший ключ в entries, найдет его там
+        flushing = entries;
+        entries = new ConcurrentSkipListMap<>();
+        flushingBytes = bytes;
+        return flushing;
+    }
+
+    /**
+     * заканчивает сброс после того, как записи попали в индекс таблицы, и будит ждущие записи
+     */
+    synchronized void endFlush() {
+        flushing = new ConcurrentSkipListMap<>();
+        bytes -= flushingBytes;
+        flushingBytes = 0;
+        failure = null;
+        notifyAll();
+    }
+
+    /**
+     * возвращает записи неудавшегося сброса в таблицу, кроме ключей, измененных за время сброса,
+     * запоминает ошибку и будит ждущие записи, они получат эту ошибку
+     *
+     * @param failure ошибка сброса
+     */
+    synchronized void abortFlush(Throwable failure) {
+        ConcurrentSkipListMap<Integer, byte[]> failed = flushing;
+        ConcurrentSkipListMap<Integer, byte[]> current = entries;
+        for (Map.Entry<Integer, byte[]> entry : failed.entrySet()) {
+            current.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+        flushing = new ConcurrentSkipListMap<>();
+        flushingBytes = 0;
+        bytes = 0;
+        for (byte[] record : current.values()) {
+            bytes += record.length + ENTRY_OVERHEAD;
+        }
+        this.failure = failure;
+        notifyAll();
+    }
+
+    /**
+     * @return true, если в памяти нет несброшенных изменений
+     */
+    boolean isEmpty() {
+        return entries.isEmpty() && flushing.isEmpty();
+    }
+
+    /**
+     * @return примерный объем несброшенных изменений в байтах
+     */
+    synchronized long bytes() {
+        return bytes;
+    }
+}
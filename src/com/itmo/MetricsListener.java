@@ -0,0 +1,19 @@
+package com.itmo;
+
+/**
+ * получает длительность каждой измеренной операции, задается в {@link DbOptions#metricsListener(MetricsListener)}.
+ * вызывается в потоке, выполнившем операцию, поэтому должен работать быстро и не обращаться к базе
+ */
+public interface MetricsListener {
+
+    enum Operation {
+        ADD, GET_BY_KEY, FIND_ALL, TRUNCATE
+    }
+
+    /**
+     * @param type      тип объектов таблицы
+     * @param operation операция
+     * @param nanos     длительность операции в наносекундах
+     */
+    void onOperation(Class<?> type, Operation operation, long nanos);
+}
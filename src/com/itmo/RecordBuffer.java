@@ -0,0 +1,25 @@
+package com.itmo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+/**
+ * переиспользуемый буфер для кодирования записей перед записью в файл.
+ * в отличие от {@link ByteArrayOutputStream#toByteArray()} отдает внутренний массив без копирования,
+ * поэтому после первых записей (когда массив дорос до размера записи) кодирование не создает мусора.
+ * не потокобезопасен: используется под appendLock таблицы
+ */
+class RecordBuffer extends ByteArrayOutputStream {
+    final DataOutputStream out = new DataOutputStream(this);
+
+    RecordBuffer() {
+        super(256);
+    }
+
+    /**
+     * @return внутренний массив, значимы первые {@link #size()} байт
+     */
+    byte[] array() {
+        return buf;
+    }
+}
@@ -0,0 +1,145 @@
+package com.itmo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * кэш прочитанных объектов одной таблицы 'ключ - объект' с вытеснением давно не использованных (LRU).
+ * объект хранится вместе со смещением, с которого он прочитан, и отдается только если индекс
+ * по-прежнему указывает на это смещение, поэтому устаревшая запись не может попасть к пользователю.
+ * кэш разбит по хешу ключа на сегменты со своей блокировкой и своей долей бюджета
+ */
+class RecordCache {
+    private static final int SEGMENT_BITS = 4;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    /**
+     * @param maxEntries максимальное количество объектов, 0 - без ограничения
+     * @param maxBytes   максимальный примерный объем объектов в байтах, 0 - без ограничения
+     */
+    RecordCache(int maxEntries, long maxBytes) {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(share(maxEntries), share(maxBytes));
+        }
+    }
+
+    /**
+     * @param key    ключ объекта
+     * @param offset текущее смещение ключа в индексе
+     * @return возвращает объект из кэша или null, если его нет или он прочитан по другому смещению
+     */
+    Object get(int key, long offset) {
+        return segment(key).get(key, offset);
+    }
+
+    void put(int key, long offset, Object object, int size) {
+        segment(key).put(key, offset, object, size);
+    }
+
+    void invalidate(int key) {
+        segment(key).invalidate(key);
+    }
+
+    void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    CacheStats stats() {
+        long hits = 0, misses = 0, evictions = 0, entries = 0, bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+                misses += segment.misses;
+                evictions += segment.evictions;
+                entries += segment.map.size();
+                bytes += segment.bytes;
+            }
+        }
+        return new CacheStats(hits, misses, evictions, entries, bytes);
+    }
+
+    private long share(long budget) {
+        return budget <= 0 ? 0 : Math.max(1, budget / segments.length);
+    }
+
+    private int share(int budget) {
+        return budget <= 0 ? 0 : Math.max(1, budget / segments.length);
+    }
+
+    private Segment segment(int key) {
+        return segments[(key * 0x9E3779B9) >>> (Integer.SIZE - SEGMENT_BITS)];
+    }
+
+    private static class Entry {
+        final long offset;
+        final Object object;
+        final int size;
+
+        Entry(long offset, Object object, int size) {
+            this.offset = offset;
+            this.object = object;
+            this.size = size;
+        }
+    }
+
+    private static class Segment {
+        private final int maxEntries;
+        private final long maxBytes;
+        // порядок доступа: первым идет объект, который дольше всех не запрашивали
+        private final LinkedHashMap<Integer, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        Segment(int maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized Object get(int key, long offset) {
+            Entry entry = map.get(key);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            if (entry.offset != offset) {
+                map.remove(key);
+                bytes -= entry.size;
+                misses++;
+                return null;
+            }
+            hits++;
+            return entry.object;
+        }
+
+        synchronized void put(int key, long offset, Object object, int size) {
+            Entry previous = map.put(key, new Entry(offset, object, size));
+            if (previous != null)
+                bytes -= previous.size;
+            bytes += size;
+
+            Iterator<Map.Entry<Integer, Entry>> eldest = map.entrySet().iterator();
+            while ((maxEntries > 0 && map.size() > maxEntries || maxBytes > 0 && bytes > maxBytes) && eldest.hasNext()) {
+                bytes -= eldest.next().getValue().size;
+                eldest.remove();
+                evictions++;
+            }
+        }
+
+        synchronized void invalidate(int key) {
+            Entry entry = map.remove(key);
+            if (entry != null)
+                bytes -= entry.size;
+        }
+
+        synchronized void clear() {
+            map.clear();
+            bytes = 0;
+        }
+    }
+}
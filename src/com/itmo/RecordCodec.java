@@ -0,0 +1,493 @@
+package com.itmo;
+
+import com.itmo.exceptions.EndOfFileException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * кодировщик объектов одного класса в байты и обратно.
+ * строится один раз для класса: тип каждого поля разбирается при построении,
+ * а доступ к полям идет через MethodHandle с примитивными сигнатурами, без Field.get/Field.set и упаковки примитивов
+ */
+class RecordCodec implements RecordReader {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final MethodHandle constructor;
+    private final FieldCodec[] fields;
+
+    private RecordCodec(MethodHandle constructor, FieldCodec[] fields) {
+        this.constructor = constructor;
+        this.fields = fields;
+    }
+
+    /**
+     * строит кодировщик для класса
+     *
+     * @param type   класс сохраняемых объектов
+     * @param fields поля, которые сохраняются в файл, в порядке записи
+     * @return возвращает кодировщик
+     * @throws IllegalArgumentException если у класса нет конструктора без параметров или тип поля не поддерживается
+     */
+    static RecordCodec of(Class<?> type, Field[] fields) {
+        try {
+            Constructor<?> ctor = type.getDeclaredConstructor();
+            ctor.setAccessible(true);
+            MethodHandle constructor = LOOKUP.unreflectConstructor(ctor).asType(MethodType.methodType(Object.class));
+
+            FieldCodec[] codecs = new FieldCodec[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                codecs[i] = fieldCodec(fields[i]);
+            }
+            return new RecordCodec(constructor, codecs);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException("Can not build codec for " + type.getName(), e);
+        }
+    }
+
+    /**
+     * записывает значения полей объекта
+     *
+     * @param object объект, поля которого нужно записать
+     * @param out    куда записываются байты
+     * @throws IOException
+     */
+    void write(Object object, DataOutput out) throws IOException {
+        try {
+            for (FieldCodec field : fields) {
+                field.write(object, out);
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * создает объект и читает в него значения полей
+     *
+     * @param in откуда читаются байты, позиция должна стоять на начале записи
+     * @return возвращает прочитанный объект
+     * @throws EndOfFileException если запись обрывается концом файла
+     * @throws IOException
+     */
+    Object read(DataInput in) throws IOException {
+        try {
+            Object object = constructor.invokeExact();
+            for (FieldCodec field : fields) {
+                field.read(object, in);
+            }
+            return object;
+        } catch (EOFException e) {
+            throw new EndOfFileException(e.getMessage());
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Object read(SeekableInput input, long offset) throws IOException {
+        return read(input);
+    }
+
+    /**
+     * оценивает, сколько памяти занимает объект в куче
+     *
+     * @param object объект этого класса
+     * @return примерный размер объекта в байтах
+     */
+    int estimateSize(Object object) {
+        try {
+            // заголовок объекта
+            int size = 16;
+            for (FieldCodec field : fields) {
+                size += field.heapSize(object);
+            }
+            return size;
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return размер записи в байтах, если все поля класса фиксированной длины, иначе -1
+     */
+    int fixedSize() {
+        int size = 0;
+        for (FieldCodec field : fields) {
+            if (field.fixedSize() < 0)
+                return -1;
+            size += field.fixedSize();
+        }
+        return size;
+    }
+
+    /**
+     * @param name имя поля
+     * @return возвращает номер поля в записи или -1, если такое поле не сохраняется
+     */
+    int fieldIndex(String name) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].name.equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return количество сохраняемых полей
+     */
+    int fieldCount() {
+        return fields.length;
+    }
+
+    /**
+     * @return тип поля с указанным номером
+     */
+    Class<?> fieldType(int index) {
+        return fields[index].type;
+    }
+
+    /**
+     * @return размер закодированного поля с указанным номером или -1 для строки, перед которой записана ее длина
+     */
+    int fieldSize(int index) {
+        return fields[index].fixedSize();
+    }
+
+    /**
+     * @return значение поля объекта, примитивы возвращаются упакованными
+     */
+    Object getField(Object object, int index) {
+        try {
+            return fields[index].getter.invoke(object);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * записывает отдельное значение поля в том же формате, в каком поле хранится в записи
+     */
+    void writeValue(int index, Object value, DataOutput out) throws IOException {
+        fields[index].writeValue(value, out);
+    }
+
+    /**
+     * читает отдельное значение поля, записанное {@link #writeValue}
+     */
+    Object readValue(int index, DataInput in) throws IOException {
+        return fields[index].readValue(in);
+    }
+
+    private static FieldCodec fieldCodec(Field field) throws IllegalAccessException {
+        field.setAccessible(true);
+        Class<?> type = field.getType();
+        int modifiers = field.getModifiers();
+        MethodHandle getter = LOOKUP.unreflectGetter(field);
+        MethodHandle setter;
+        if (Modifier.isStatic(modifiers) && Modifier.isFinal(modifiers)) {
+            // константу записываем как есть, а при чтении пропускаем - изменить ее все равно нельзя
+            getter = MethodHandles.dropArguments(getter, 0, Object.class);
+            setter = MethodHandles.empty(MethodType.methodType(void.class, Object.class, type));
+        } else if (Modifier.isStatic(modifiers)) {
+            // статические поля тоже сохраняются, приводим их к той же сигнатуре, что у полей объекта
+            getter = MethodHandles.dropArguments(getter, 0, Object.class);
+            setter = MethodHandles.dropArguments(LOOKUP.unreflectSetter(field), 0, Object.class);
+        } else {
+            setter = LOOKUP.unreflectSetter(field);
+        }
+        getter = getter.asType(MethodType.methodType(type, Object.class));
+        setter = setter.asType(MethodType.methodType(void.class, Object.class, type));
+
+        FieldCodec codec;
+        if (type == boolean.class)
+            codec = new BooleanCodec(getter, setter);
+        else if (type == int.class)
+            codec = new IntCodec(getter, setter);
+        else if (type == long.class)
+            codec = new LongCodec(getter, setter);
+        else if (type == float.class)
+            codec = new FloatCodec(getter, setter);
+        else if (type == double.class)
+            codec = new DoubleCodec(getter, setter);
+        else if (type == String.class)
+            codec = new StringCodec(getter, setter);
+        else
+            codec = null;
+        if (codec != null) {
+            codec.name = field.getName();
+            codec.type = type;
+            return codec;
+        }
+        throw new IllegalArgumentException("Unsupported field type " + type.getName() + " of " + field);
+    }
+
+    private abstract static class FieldCodec {
+        final MethodHandle getter;
+        final MethodHandle setter;
+        String name;
+        Class<?> type;
+
+        FieldCodec(MethodHandle getter, MethodHandle setter) {
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        abstract void write(Object object, DataOutput out) throws Throwable;
+
+        abstract void read(Object object, DataInput in) throws Throwable;
+
+        abstract int heapSize(Object object) throws Throwable;
+
+        abstract void writeValue(Object value, DataOutput out) throws IOException;
+
+        abstract Object readValue(DataInput in) throws IOException;
+
+        /**
+         * @return размер закодированного поля в байтах или -1, если он зависит от значения
+         */
+        abstract int fixedSize();
+    }
+
+    private static class BooleanCodec extends FieldCodec {
+        BooleanCodec(MethodHandle getter, MethodHandle setter) {
+            super(getter, setter);
+        }
+
+        @Override
+        void write(Object object, DataOutput out) throws Throwable {
+            out.writeBoolean((boolean) getter.invokeExact(object));
+        }
+
+        @Override
+        void read(Object object, DataInput in) throws Throwable {
+            setter.invokeExact(object, in.readBoolean());
+        }
+
+        @Override
+        int heapSize(Object object) {
+            return 1;
+        }
+
+        @Override
+        void writeValue(Object value, DataOutput out) throws IOException {
+            out.writeBoolean((Boolean) value);
+        }
+
+        @Override
+        Object readValue(DataInput in) throws IOException {
+            return in.readBoolean();
+        }
+
+        @Override
+        int fixedSize() {
+            return 1;
+        }
+    }
+
+    private static class IntCodec extends FieldCodec {
+        IntCodec(MethodHandle getter, MethodHandle setter) {
+            super(getter, setter);
+        }
+
+        @Override
+        void write(Object object, DataOutput out) throws Throwable {
+            out.writeInt((int) getter.invokeExact(object));
+        }
+
+        @Override
+        void read(Object object, DataInput in) throws Throwable {
+            setter.invokeExact(object, in.readInt());
+        }
+
+        @Override
+        int heapSize(Object object) {
+            return Integer.BYTES;
+        }
+
+        @Override
+        void writeValue(Object value, DataOutput out) throws IOException {
+            out.writeInt((Integer) value);
+        }
+
+        @Override
+        Object readValue(DataInput in) throws IOException {
+            return in.readInt();
+        }
+
+        @Override
+        int fixedSize() {
+            return Integer.BYTES;
+        }
+    }
+
+    private static class LongCodec extends FieldCodec {
+        LongCodec(MethodHandle getter, MethodHandle setter) {
+            super(getter, setter);
+        }
+
+        @Override
+        void write(Object object, DataOutput out) throws Throwable {
+            out.writeLong((long) getter.invokeExact(object));
+        }
+
+        @Override
+        void read(Object object, DataInput in) throws Throwable {
+            setter.invokeExact(object, in.readLong());
+        }
+
+        @Override
+        int heapSize(Object object) {
+            return Long.BYTES;
+        }
+
+        @Override
+        void writeValue(Object value, DataOutput out) throws IOException {
+            out.writeLong((Long) value);
+        }
+
+        @Override
+        Object readValue(DataInput in) throws IOException {
+            return in.readLong();
+        }
+
+        @Override
+        int fixedSize() {
+            return Long.BYTES;
+        }
+    }
+
+    private static class FloatCodec extends FieldCodec {
+        FloatCodec(MethodHandle getter, MethodHandle setter) {
+            super(getter, setter);
+        }
+
+        @Override
+        void write(Object object, DataOutput out) throws Throwable {
+            out.writeFloat((float) getter.invokeExact(object));
+        }
+
+        @Override
+        void read(Object object, DataInput in) throws Throwable {
+            setter.invokeExact(object, in.readFloat());
+        }
+
+        @Override
+        int heapSize(Object object) {
+            return Float.BYTES;
+        }
+
+        @Override
+        void writeValue(Object value, DataOutput out) throws IOException {
+            out.writeFloat((Float) value);
+        }
+
+        @Override
+        Object readValue(DataInput in) throws IOException {
+            return in.readFloat();
+        }
+
+        @Override
+        int fixedSize() {
+            return Float.BYTES;
+        }
+    }
+
+    private static class DoubleCodec extends FieldCodec {
+        DoubleCodec(MethodHandle getter, MethodHandle setter) {
+            super(getter, setter);
+        }
+
+        @Override
+        void write(Object object, DataOutput out) throws Throwable {
+            out.writeDouble((double) getter.invokeExact(object));
+        }
+
+        @Override
+        void read(Object object, DataInput in) throws Throwable {
+            setter.invokeExact(object, in.readDouble());
+        }
+
+        @Override
+        int heapSize(Object object) {
+            return Double.BYTES;
+        }
+
+        @Override
+        void writeValue(Object value, DataOutput out) throws IOException {
+            out.writeDouble((Double) value);
+        }
+
+        @Override
+        Object readValue(DataInput in) throws IOException {
+            return in.readDouble();
+        }
+
+        @Override
+        int fixedSize() {
+            return Double.BYTES;
+        }
+    }
+
+    private static class StringCodec extends FieldCodec {
+        StringCodec(MethodHandle getter, MethodHandle setter) {
+            super(getter, setter);
+        }
+
+        @Override
+        void write(Object object, DataOutput out) throws Throwable {
+            byte[] bytes = ((String) getter.invokeExact(object)).getBytes();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        void read(Object object, DataInput in) throws Throwable {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            setter.invokeExact(object, new String(bytes));
+        }
+
+        @Override
+        int heapSize(Object object) throws Throwable {
+            String value = (String) getter.invokeExact(object);
+            // ссылка, объект String и массив символов
+            return value == null ? 4 : 4 + 24 + 16 + value.length();
+        }
+
+        @Override
+        void writeValue(Object value, DataOutput out) throws IOException {
+            byte[] bytes = ((String) value).getBytes();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        Object readValue(DataInput in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes);
+        }
+
+        @Override
+        int fixedSize() {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.itmo;
+
+import com.itmo.exceptions.EndOfFileException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * {@link Filter}, собранный под расположение полей одной таблицы.
+ * проверяет запись по ее байтам: поля до последнего нужного фильтру читаются в массивы значений без создания объектов,
+ * ненужные пропускаются, строки сравниваются в закодированном виде. объект строится только для подходящей записи.
+ * хранит значения текущей записи, поэтому используется одним потоком
+ */
+class RecordFilter implements RecordReader {
+    private final RecordCodec codec;
+    private final Condition condition;
+    // размер каждого поля (-1 - строка) и нужно ли его значение фильтру
+    private final int[] sizes;
+    private final boolean[] needed;
+    // номер последнего нужного поля, дальше запись не читается
+    private int last = -1;
+
+    // значения полей текущей записи: boolean, int и long - в longs, float и double - в doubles, строки - байтами
+    final long[] longs;
+    final double[] doubles;
+    private final byte[][] strings;
+    private final int[] lengths;
+
+    /**
+     * условие собранного фильтра над значениями полей текущей записи
+     */
+    interface Condition {
+        boolean test();
+    }
+
+    /**
+     * @param codec  кодировщик записей таблицы
+     * @param filter фильтр
+     * @throws IllegalArgumentException если фильтр ссылается на несохраняемое поле или значение не подходит к типу поля
+     */
+    RecordFilter(RecordCodec codec, Filter filter) {
+        this.codec = codec;
+        int count = codec.fieldCount();
+        this.sizes = new int[count];
+        this.needed = new boolean[count];
+        this.longs = new long[count];
+        this.doubles = new double[count];
+        this.strings = new byte[count][];
+        this.lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = codec.fieldSize(i);
+        }
+        this.condition = filter.bind(this);
+    }
+
+    /**
+     * отмечает поле как нужное фильтру
+     *
+     * @param field имя поля
+     * @return номер поля в записи
+     */
+    int require(String field) {
+        int index = codec.fieldIndex(field);
+        if (index < 0)
+            throw new IllegalArgumentException("Field " + field + " is not stored");
+        needed[index] = true;
+        last = Math.max(last, index);
+        if (sizes[index] < 0 && strings[index] == null)
+            strings[index] = new byte[64];
+        return index;
+    }
+
+    Class<?> fieldType(int index) {
+        return codec.fieldType(index);
+    }
+
+    /**
+     * проверяет запись по байтам и строит объект, если она подходит
+     *
+     * @return объект или null, если запись не подходит под фильтр
+     * @throws EndOfFileException если запись обрывается концом файла
+     */
+    @Override
+    public Object read(SeekableInput input, long offset) throws IOException {
+        try {
+            for (int i = 0; i <= last; i++) {
+                if (needed[i])
+                    readValue(i, input);
+                else if (sizes[i] < 0)
+                    input.skipBytes(input.readInt());
+                else
+                    input.skipBytes(sizes[i]);
+            }
+        } catch (EOFException e) {
+            throw new EndOfFileException(e.getMessage());
+        }
+        if (!condition.test())
+            return null;
+        input.seek(offset);
+        return codec.read(input);
+    }
+
+    /**
+     * проверяет уже построенный объект таблицы, например взятый из кэша просмотров
+     */
+    boolean test(Object object) {
+        if (object == null)
+            return false;
+        for (int i = 0; i <= last; i++) {
+            if (needed[i])
+                loadValue(i, codec.getField(object, i));
+        }
+        return condition.test();
+    }
+
+    private void readValue(int index, SeekableInput input) throws IOException {
+        Class<?> type = codec.fieldType(index);
+        if (type == boolean.class)
+            longs[index] = input.readBoolean() ? 1 : 0;
+        else if (type == int.class)
+            longs[index] = input.readInt();
+        else if (type == long.class)
+            longs[index] = input.readLong();
+        else if (type == float.class)
+            doubles[index] = input.readFloat();
+        else if (type == double.class)
+            doubles[index] = input.readDouble();
+        else {
+            int length = input.readInt();
+            if (strings[index].length < length)
+                strings[index] = new byte[Math.max(length, strings[index].length * 2)];
+            input.readFully(strings[index], 0, length);
+            lengths[index] = length;
+        }
+    }
+
+    private void loadValue(int index, Object value) {
+        if (value instanceof Boolean)
+            longs[index] = (Boolean) value ? 1 : 0;
+        else if (value instanceof Integer || value instanceof Long)
+            longs[index] = ((Number) value).longValue();
+        else if (value instanceof Number)
+            doubles[index] = ((Number) value).doubleValue();
+        else {
+            byte[] bytes = ((String) value).getBytes();
+            strings[index] = bytes;
+            lengths[index] = bytes.length;
+        }
+    }
+
+    /**
+     * @return true, если строковое поле текущей записи в закодированном виде совпадает с bytes
+     */
+    boolean bytesEqual(int index, byte[] bytes) {
+        return Arrays.equals(strings[index], 0, lengths[index], bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return строковое поле текущей записи
+     */
+    String string(int index) {
+        return new String(strings[index], 0, lengths[index]);
+    }
+
+    /**
+     * @return числовое поле текущей записи как double
+     */
+    double doubleValue(int index) {
+        Class<?> type = codec.fieldType(index);
+        return type == float.class || type == double.class ? doubles[index] : longs[index];
+    }
+}
@@ -0,0 +1,17 @@
+package com.itmo;
+
+import java.io.IOException;
+
+/**
+ * читает запись таблицы из источника, стоящего на ее начале: {@link RecordCodec} строит объект,
+ * {@link RecordFilter} строит его только для записи, подходящей под фильтр
+ */
+interface RecordReader {
+    /**
+     * @param input  источник, позиция которого стоит на начале записи
+     * @param offset смещение записи, по нему к началу записи можно вернуться
+     * @return прочитанный объект или null, если запись пропускается
+     * @throws IOException
+     */
+    Object read(SeekableInput input, long offset) throws IOException;
+}
@@ -0,0 +1,47 @@
+package com.itmo;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * кэш результатов полного просмотра одной таблицы для findAll/findFirst.
+ * хранит все актуальные объекты таблицы вместе с номером версии таблицы (epoch), при которой они прочитаны.
+ * любая запись в таблицу увеличивает версию, после чего кэш считается устаревшим и
+ * перестраивается при следующем просмотре
+ */
+class ScanCache {
+    private volatile Snapshot snapshot;
+
+    /**
+     * @param epoch текущая версия таблицы
+     * @return возвращает объекты таблицы или null, если кэш пуст или построен для другой версии
+     */
+    List<Object> get(long epoch) {
+        Snapshot current = snapshot;
+        return current != null && current.epoch == epoch ? current.objects : null;
+    }
+
+    /**
+     * сохраняет результат просмотра
+     *
+     * @param epoch   версия таблицы, прочитанная до начала просмотра
+     * @param objects все актуальные объекты таблицы
+     */
+    void put(long epoch, List<Object> objects) {
+        snapshot = new Snapshot(epoch, Collections.unmodifiableList(objects));
+    }
+
+    void clear() {
+        snapshot = null;
+    }
+
+    private static class Snapshot {
+        final long epoch;
+        final List<Object> objects;
+
+        Snapshot(long epoch, List<Object> objects) {
+            this.epoch = epoch;
+            this.objects = objects;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.itmo;
+
+import com.itmo.exceptions.EndOfFileException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/**
+ * параллельный просмотр таблицы: отрезок отсортированных смещений делится пополам, пока не станет меньше порции,
+ * порции читаются и проверяются в разных потоках ForkJoinPool, результаты склеиваются в порядке смещений
+ *
+ * @param <T> тип объектов таблицы
+ */
+class ScanTask<T> extends RecursiveTask<List<T>> {
+    // меньше этого количества записей отрезок не делится, чтобы чтение блоками оставалось выгодным
+    private static final int MIN_CHUNK = 1024;
+
+    private final DbDescriptor descriptor;
+    private final long[] offsets;
+    private final int from;
+    private final int to;
+    private final int chunk;
+    private final Predicate<? super T> predicate;
+
+    ScanTask(DbDescriptor descriptor, long[] offsets, Predicate<? super T> predicate) {
+        // несколько порций на поток, чтобы потоки с быстрыми порциями забирали работу у медленных
+        this(descriptor, offsets, 0, offsets.length,
+                Math.max(MIN_CHUNK, offsets.length / (ForkJoinPool.getCommonPoolParallelism() * 4)), predicate);
+    }
+
+    private ScanTask(DbDescriptor descriptor, long[] offsets, int from, int to, int chunk, Predicate<? super T> predicate) {
+        this.descriptor = descriptor;
+        this.offsets = offsets;
+        this.from = from;
+        this.to = to;
+        this.chunk = chunk;
+        this.predicate = predicate;
+    }
+
+    @Override
+    protected List<T> compute() {
+        if (to - from <= chunk)
+            return scan();
+
+        int middle = (from + to) >>> 1;
+        ScanTask<T> left = new ScanTask<>(descriptor, offsets, from, middle, chunk, predicate);
+        ScanTask<T> right = new ScanTask<>(descriptor, offsets, middle, to, chunk, predicate);
+        left.fork();
+        List<T> rightResult = right.compute();
+        List<T> result = left.join();
+        result.addAll(rightResult);
+        return result;
+    }
+
+    private List<T> scan() {
+        List<T> result = new ArrayList<>();
+        try {
+            SeekableInput input = descriptor.scanInput();
+            for (int i = from; i < to; i++) {
+                T object;
+                try {
+                    object = (T) input.readRecord(descriptor.codec, offsets[i], descriptor.seqLock);
+                } catch (EndOfFileException e) {
+                    // запись не дописана до конца своего сегмента, остальные записи отрезка читаются дальше
+                    continue;
+                }
+                if (predicate.test(object))
+                    result.add(object);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+}
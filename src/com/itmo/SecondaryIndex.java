@@ -0,0 +1,446 @@
+package com.itmo;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.util.*;
+
+/**
+ * вторичный индекс 'значение поля - ключи' для поля таблицы, помеченного {@link Index}.
+ * хранится в памяти и в журнале: каждая запись журнала содержит ключ, смещение объекта в файле с данными
+ * и значение поля. при открытии базы журнал сверяется с индексом ключей таблицы - ключи,
+ * смещение которых в журнале не совпадает с актуальным, переиндексируются по файлу с данными,
+ * поэтому индекс остается согласованным, даже если запись в журнал не успела попасть на диск.
+ * значения числовых полей хранятся в дереве (TreeMap), что позволяет выбирать ключи по диапазону значений.
+ * ключи хранятся в примитивных таблицах с открытой адресацией, как в {@link KeyIndex}: 'ключ - смещение и значение'
+ * и множество ключей для каждого значения. объекты создаются только на каждое различное значение поля
+ * (само значение и его множество ключей), поэтому у поля с почти уникальными значениями расход памяти на ключ выше
+ */
+class SecondaryIndex {
+    final String field;
+    final int fieldIndex;
+    // значения упорядочены, поддерживается поиск по диапазону
+    final boolean ordered;
+    private final RecordCodec codec;
+    RandomAccessFile log;
+    private final RecordBuffer entryBuffer = new RecordBuffer();
+
+    private final Map<Object, KeySet> values;
+    private final Entries entries = new Entries();
+
+    SecondaryIndex(String field, RecordCodec codec, RandomAccessFile log) {
+        this.field = field;
+        this.fieldIndex = codec.fieldIndex(field);
+        this.codec = codec;
+        this.log = log;
+        Class<?> type = codec.fieldType(fieldIndex);
+        this.ordered = type == int.class || type == long.class || type == float.class || type == double.class;
+        this.values = ordered ? new TreeMap<>() : new HashMap<>();
+    }
+
+    /**
+     * читает журнал в память. недописанная последняя запись журнала отрезается
+     *
+     * @throws IOException
+     */
+    synchronized void load() throws IOException {
+        long position = 0;
+        log.seek(0);
+        CountingInput counting = new CountingInput(new BufferedInputStream(Channels.newInputStream(log.getChannel()), 1 << 16));
+        DataInputStream in = new DataInputStream(counting);
+        long length = log.length();
+        try {
+            while (position < length) {
+                int key = in.readInt();
+                long offset = in.readLong();
+                Object value = codec.readValue(fieldIndex, in);
+                put(key, offset, value);
+                position = counting.count;
+            }
+        } catch (EOFException e) {
+            log.setLength(position);
+        }
+    }
+
+    /**
+     * @return смещение объекта, для которого записано значение в индексе, или -1, если ключа нет в индексе
+     */
+    synchronized long offsetOf(int key) {
+        int slot = entries.find(key);
+        return slot < 0 ? -1 : entries.offsets[slot];
+    }
+
+    /**
+     * сохраняет в памяти значение поля объекта с данным ключом
+     */
+    synchronized void put(int key, long offset, Object value) {
+        int slot = entries.find(key);
+        if (slot >= 0) {
+            if (entries.sets[slot].value.equals(value)) {
+                entries.offsets[slot] = offset;
+                return;
+            }
+            unlink(key, entries.sets[slot]);
+            entries.removeAt(slot);
+        }
+        KeySet keys = values.computeIfAbsent(value, KeySet::new);
+        keys.add(key);
+        entries.add(key, offset, keys);
+    }
+
+    /**
+     * удаляет ключ из индекса в памяти
+     */
+    synchronized void remove(int key) {
+        int slot = entries.find(key);
+        if (slot >= 0) {
+            unlink(key, entries.sets[slot]);
+            entries.removeAt(slot);
+        }
+    }
+
+    /**
+     * удаляет из индекса ключи, которых больше нет в индексе ключей таблицы
+     */
+    synchronized void removeDead(KeyOffsetIndex primary) {
+        // удаление сдвигает ячейки таблицы, поэтому ключи сначала собираются
+        int[] dead = new int[16];
+        int count = 0;
+        for (int slot = 0; slot < entries.sets.length; slot++) {
+            if (entries.sets[slot] != null && (primary == null || primary.get(entries.keys[slot]) < 0)) {
+                if (count == dead.length)
+                    dead = Arrays.copyOf(dead, count * 2);
+                dead[count++] = entries.keys[slot];
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            remove(dead[i]);
+        }
+    }
+
+    /**
+     * @param value значение поля
+     * @return ключи объектов с таким значением поля
+     */
+    synchronized int[] keysFor(Object value) {
+        KeySet keys = values.get(normalize(value));
+        return keys == null ? new int[0] : keys.toArray(Integer.MAX_VALUE);
+    }
+
+    /**
+     * возвращает ключи объектов, значение поля которых лежит в диапазоне, в порядке значений.
+     * границы уже приведены к типу поля методом {@link #normalize(Object)}
+     *
+     * @param from       нижняя граница включительно, null - без границы
+     * @param to         верхняя граница включительно, null - без границы
+     * @param descending true - от больших значений к меньшим
+     * @param limit      максимальное количество ключей
+     * @return ключи объектов в порядке значений поля
+     */
+    synchronized int[] keysInRange(Object from, Object to, boolean descending, int limit) {
+        if (from != null && to != null && compare(from, to) > 0)
+            return new int[0];
+        NavigableMap<Object, KeySet> range = (NavigableMap<Object, KeySet>) values;
+        if (from != null && to != null)
+            range = range.subMap(from, true, to, true);
+        else if (from != null)
+            range = range.tailMap(from, true);
+        else if (to != null)
+            range = range.headMap(to, true);
+        if (descending)
+            range = range.descendingMap();
+
+        int[] result = new int[16];
+        int count = 0;
+        for (KeySet keys : range.values()) {
+            if (count == limit)
+                break;
+            int[] valueKeys = keys.toArray(limit - count);
+            if (count + valueKeys.length > result.length)
+                result = Arrays.copyOf(result, Math.max(result.length * 2, count + valueKeys.length));
+            System.arraycopy(valueKeys, 0, result, count, valueKeys.length);
+            count += valueKeys.length;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * проверяет, что значение поля лежит в диапазоне [from, to], null - без границы
+     */
+    boolean inRange(Object value, Object from, Object to) {
+        return (from == null || compare(value, from) >= 0) && (to == null || compare(value, to) <= 0);
+    }
+
+    private static int compare(Object a, Object b) {
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    /**
+     * записывает запись журнала в буфер
+     */
+    void writeEntry(int key, long offset, Object value, DataOutput out) throws IOException {
+        out.writeInt(key);
+        out.writeLong(offset);
+        codec.writeValue(fieldIndex, value, out);
+    }
+
+    /**
+     * дописывает в конец журнала одну запись, кодируя ее в переиспользуемый буфер.
+     * вызывается под appendLock таблицы
+     */
+    void appendEntry(int key, long offset, Object value) throws IOException {
+        entryBuffer.reset();
+        writeEntry(key, offset, value, entryBuffer.out);
+        log.seek(log.length());
+        log.write(entryBuffer.array(), 0, entryBuffer.size());
+    }
+
+    /**
+     * дописывает подготовленные записи в конец журнала
+     */
+    void append(byte[] buffer) throws IOException {
+        log.seek(log.length());
+        log.write(buffer);
+    }
+
+    /**
+     * записывает все значения индекса с новыми смещениями из индекса ключей таблицы, используется при переписывании файлов
+     *
+     * @param primary индекс ключей переписанной таблицы
+     * @param out     новый журнал
+     */
+    synchronized void writeAll(KeyOffsetIndex primary, DataOutput out) throws IOException {
+        for (int slot = 0; slot < entries.sets.length; slot++) {
+            if (entries.sets[slot] == null)
+                continue;
+            long offset = primary.get(entries.keys[slot]);
+            entries.offsets[slot] = offset;
+            if (offset >= 0)
+                writeEntry(entries.keys[slot], offset, entries.sets[slot].value, out);
+        }
+    }
+
+    /**
+     * приводит значение, переданное пользователем, к типу поля (например, 100 для поля long)
+     */
+    Object normalize(Object value) {
+        Class<?> type = codec.fieldType(fieldIndex);
+        if (value instanceof Number) {
+            Number number = (Number) value;
+            if (type == int.class)
+                return number.intValue();
+            if (type == long.class)
+                return number.longValue();
+            if (type == float.class)
+                return number.floatValue();
+            if (type == double.class)
+                return number.doubleValue();
+        }
+        return value;
+    }
+
+    private void unlink(int key, KeySet keys) {
+        keys.remove(key);
+        if (keys.size == 0)
+            values.remove(keys.value);
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * таблица 'ключ - смещение и множество ключей значения' с открытой адресацией.
+     * свободная ячейка - ячейка без множества, удаление сдвигает следующие ячейки цепочки на освободившееся место
+     */
+    private static class Entries {
+        int[] keys = new int[16];
+        long[] offsets = new long[16];
+        KeySet[] sets = new KeySet[16];
+        private int size;
+
+        /**
+         * @return ячейка ключа или -1, если ключа нет
+         */
+        int find(int key) {
+            int mask = sets.length - 1;
+            for (int slot = hash(key) & mask; sets[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot] == key)
+                    return slot;
+            }
+            return -1;
+        }
+
+        /**
+         * добавляет ключ, которого нет в таблице
+         */
+        void add(int key, long offset, KeySet set) {
+            if (++size > sets.length * 3 / 4)
+                resize();
+            int mask = sets.length - 1;
+            int slot = hash(key) & mask;
+            while (sets[slot] != null)
+                slot = (slot + 1) & mask;
+            keys[slot] = key;
+            offsets[slot] = offset;
+            sets[slot] = set;
+        }
+
+        void removeAt(int slot) {
+            int mask = sets.length - 1;
+            int gap = slot;
+            for (int i = (slot + 1) & mask; sets[i] != null; i = (i + 1) & mask) {
+                // ключ переносится в пропуск, если пропуск лежит между его исходной ячейкой и текущей
+                if (((i - (hash(keys[i]) & mask)) & mask) >= ((i - gap) & mask)) {
+                    keys[gap] = keys[i];
+                    offsets[gap] = offsets[i];
+                    sets[gap] = sets[i];
+                    gap = i;
+                }
+            }
+            sets[gap] = null;
+            size--;
+        }
+
+        private void resize() {
+            int[] oldKeys = keys;
+            long[] oldOffsets = offsets;
+            KeySet[] oldSets = sets;
+            keys = new int[oldSets.length * 2];
+            offsets = new long[oldSets.length * 2];
+            sets = new KeySet[oldSets.length * 2];
+            int mask = sets.length - 1;
+            for (int i = 0; i < oldSets.length; i++) {
+                if (oldSets[i] == null)
+                    continue;
+                int slot = hash(oldKeys[i]) & mask;
+                while (sets[slot] != null)
+                    slot = (slot + 1) & mask;
+                keys[slot] = oldKeys[i];
+                offsets[slot] = oldOffsets[i];
+                sets[slot] = oldSets[i];
+            }
+        }
+    }
+
+    /**
+     * ключи объектов с одним значением поля: множество int с открытой адресацией.
+     * значение хранится здесь же и разделяется всеми ключами с этим значением
+     */
+    private static class KeySet {
+        // метка свободной ячейки, сам ключ Integer.MIN_VALUE хранится флагом
+        private static final int FREE = Integer.MIN_VALUE;
+
+        final Object value;
+        private int[] keys = {FREE, FREE};
+        private boolean hasFreeKey;
+        int size;
+
+        KeySet(Object value) {
+            this.value = value;
+        }
+
+        void add(int key) {
+            if (key == FREE) {
+                if (!hasFreeKey)
+                    size++;
+                hasFreeKey = true;
+                return;
+            }
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            int current;
+            while ((current = keys[slot]) != FREE) {
+                if (current == key)
+                    return;
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            size++;
+            if (size - (hasFreeKey ? 1 : 0) > keys.length * 3 / 4)
+                resize();
+        }
+
+        void remove(int key) {
+            if (key == FREE) {
+                if (hasFreeKey)
+                    size--;
+                hasFreeKey = false;
+                return;
+            }
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (keys[slot] != key) {
+                if (keys[slot] == FREE)
+                    return;
+                slot = (slot + 1) & mask;
+            }
+            int gap = slot;
+            for (int i = (slot + 1) & mask; keys[i] != FREE; i = (i + 1) & mask) {
+                if (((i - (hash(keys[i]) & mask)) & mask) >= ((i - gap) & mask)) {
+                    keys[gap] = keys[i];
+                    gap = i;
+                }
+            }
+            keys[gap] = FREE;
+            size--;
+        }
+
+        /**
+         * @return не больше limit ключей множества
+         */
+        int[] toArray(int limit) {
+            int[] result = new int[Math.min(size, limit)];
+            int count = 0;
+            if (hasFreeKey && count < result.length)
+                result[count++] = FREE;
+            for (int i = 0; i < keys.length && count < result.length; i++) {
+                if (keys[i] != FREE)
+                    result[count++] = keys[i];
+            }
+            return result;
+        }
+
+        private void resize() {
+            int[] old = keys;
+            keys = new int[old.length * 2];
+            Arrays.fill(keys, FREE);
+            int mask = keys.length - 1;
+            for (int key : old) {
+                if (key == FREE)
+                    continue;
+                int slot = hash(key) & mask;
+                while (keys[slot] != FREE)
+                    slot = (slot + 1) & mask;
+                keys[slot] = key;
+            }
+        }
+    }
+
+    /**
+     * считает прочитанные байты, чтобы знать, где закончилась последняя целая запись журнала
+     */
+    private static class CountingInput extends FilterInputStream {
+        long count;
+
+        CountingInput(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.itmo;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * источник данных таблицы с переходом на произвольное смещение, используется при просмотре файла с данными
+ */
+interface SeekableInput extends DataInput {
+    /**
+     * переходит к смещению в файле с данными, следующее чтение начнется с него
+     */
+    void seek(long position);
+
+    /**
+     * читает запись по смещению. у таблицы с перезаписью на месте запись, которая перезаписывалась во время чтения,
+     * читается заново, так что разорванной записи читатель не видит
+     *
+     * @param reader  кодировщик записей таблицы или фильтр
+     * @param offset  смещение записи
+     * @param seqLock перезапись на месте таблицы или null, если записи только дописываются
+     * @return прочитанный объект или null, если reader пропустил запись
+     * @throws IOException
+     */
+    default Object readRecord(RecordReader reader, long offset, StripedSeqLock seqLock) throws IOException {
+        while (true) {
+            long sequence = seqLock == null ? 0 : seqLock.sequence(offset);
+            seek(offset);
+            Object object = reader.read(this, offset);
+            if (seqLock == null || seqLock.unchanged(offset, sequence))
+                return object;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.itmo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * один сегмент файла с данными таблицы: Type.kvdb (номер 0) или Type.N.kvdb.
+ * дописывается только активный сегмент таблицы, остальные закрыты для записи и не меняются до удаления сжатием.
+ * смещение записи в индексе - пара (номер сегмента, позиция в сегменте), упакованная в long:
+ * старшие биты - номер, младшие {@link #POSITION_BITS} - позиция. у сегмента 0 смещение совпадает с позицией,
+ * поэтому файлы, записанные без сегментов, читаются без преобразования
+ */
+class Segment implements Closeable {
+    static final int POSITION_BITS = 40;
+    // наибольший размер сегмента (1 Тб)
+    static final long MAX_SIZE = 1L << POSITION_BITS;
+    private static final long POSITION_MASK = MAX_SIZE - 1;
+    // наибольший номер сегмента: смещение должно остаться неотрицательным, -1 в файле с ключами - удаленный ключ
+    static final int MAX_ID = (int) (Long.MAX_VALUE >>> POSITION_BITS);
+
+    final int id;
+    final Path path;
+    // общий канал для позиционного чтения сегмента всеми потоками
+    volatile FileChannel readChannel;
+    // отображение в память или null, если чтение идет через канал
+    final MappedDataFile mappedFile;
+    // длина закрытого для записи сегмента, у активного длина - DbDescriptor.dataTail
+    volatile long length;
+
+    Segment(int id, Path path, boolean mapped) throws IOException {
+        this.id = id;
+        this.path = path;
+        this.readChannel = FileChannel.open(path, StandardOpenOption.READ);
+        this.mappedFile = mapped ? new MappedDataFile(path) : null;
+        this.length = readChannel.size();
+    }
+
+    static long offset(int id, long position) {
+        return ((long) id << POSITION_BITS) | position;
+    }
+
+    static int id(long offset) {
+        return (int) (offset >>> POSITION_BITS);
+    }
+
+    static long position(long offset) {
+        return offset & POSITION_MASK;
+    }
+
+    /**
+     * заново открывает канал чтения, если его закрыло прерывание потока, читавшего через него.
+     * FileChannel закрывается при прерывании любого читающего потока, а канал общий для всех читателей
+     *
+     * @param failed канал, на котором произошла ошибка
+     * @throws IOException
+     */
+    synchronized void reopenReadChannel(FileChannel failed) throws IOException {
+        if (readChannel == failed)
+            readChannel = FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            readChannel.close();
+        } finally {
+            if (mappedFile != null)
+                mappedFile.close();
+        }
+    }
+}
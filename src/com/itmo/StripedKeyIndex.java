@@ -0,0 +1,155 @@
+package com.itmo;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * потокобезопасный индекс 'ключ - смещение' одной таблицы.
+ * ключи разбиты по хешу на полосы, у каждой полосы свой {@link KeyIndex} и своя блокировка,
+ * поэтому поиск и запись разных ключей почти не мешают друг другу
+ */
+public class StripedKeyIndex implements KeyOffsetIndex {
+    private static final int STRIPE_BITS = 4;
+
+    private final KeyIndex[] stripes = new KeyIndex[1 << STRIPE_BITS];
+    private final ReadWriteLock[] locks = new ReadWriteLock[1 << STRIPE_BITS];
+
+    public StripedKeyIndex() {
+        this(0);
+    }
+
+    /**
+     * @param expectedKeys ожидаемое количество ключей, по нему выбирается начальный размер полос
+     */
+    public StripedKeyIndex(int expectedKeys) {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new KeyIndex(expectedKeys / stripes.length);
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * @return возвращает смещение по ключу или -1, если ключа нет в индексе или он удален
+     */
+    @Override
+    public long get(int key) {
+        int stripe = stripe(key);
+        locks[stripe].readLock().lock();
+        try {
+            return stripes[stripe].get(key);
+        } finally {
+            locks[stripe].readLock().unlock();
+        }
+    }
+
+    /**
+     * сохраняет смещение по ключу, отрицательное смещение помечает ключ удаленным
+     */
+    @Override
+    public void put(int key, long offset) {
+        int stripe = stripe(key);
+        locks[stripe].writeLock().lock();
+        try {
+            stripes[stripe].put(key, offset);
+        } finally {
+            locks[stripe].writeLock().unlock();
+        }
+    }
+
+    /**
+     * помечает ключ удаленным (смещение -1)
+     */
+    @Override
+    public void remove(int key) {
+        int stripe = stripe(key);
+        locks[stripe].writeLock().lock();
+        try {
+            stripes[stripe].remove(key);
+        } finally {
+            locks[stripe].writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return количество ключей, у которых есть актуальные данные
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].readLock().lock();
+            try {
+                size += stripes[i].size();
+            } finally {
+                locks[i].readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return возвращает смещения всех актуальных записей таблицы в порядке возрастания, для просмотра файла подряд
+     */
+    @Override
+    public long[] sortedOffsets() {
+        long[] offsets = new long[16];
+        int count = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].readLock().lock();
+            try {
+                KeyIndex stripe = stripes[i];
+                if (count + stripe.size() > offsets.length)
+                    offsets = Arrays.copyOf(offsets, Math.max(offsets.length * 2, count + stripe.size()));
+                for (int slot = 0; slot < stripe.capacity(); slot++) {
+                    long offset = stripe.offsetAt(slot);
+                    if (offset >= 0)
+                        offsets[count++] = offset;
+                }
+            } finally {
+                locks[i].readLock().unlock();
+            }
+        }
+        Arrays.sort(offsets, 0, count);
+        return Arrays.copyOf(offsets, count);
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].readLock().lock();
+            try {
+                KeyIndex stripe = stripes[i];
+                for (int slot = 0; slot < stripe.capacity(); slot++) {
+                    long offset = stripe.offsetAt(slot);
+                    if (offset >= 0)
+                        visitor.visit(stripe.keyAt(slot), offset);
+                }
+            } finally {
+                locks[i].readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return примерный объем памяти, занимаемый индексом, в байтах
+     */
+    @Override
+    public long memoryUsage() {
+        long usage = 16 + 2 * (16 + 4L * stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].readLock().lock();
+            try {
+                usage += stripes[i].memoryUsage();
+            } finally {
+                locks[i].readLock().unlock();
+            }
+        }
+        return usage;
+    }
+
+    private static int stripe(int key) {
+        // старшие биты другого перемешивания, чтобы не совпадать с выбором ячейки внутри KeyIndex
+        return (key * 0x85EBCA6B) >>> (Integer.SIZE - STRIPE_BITS);
+    }
+}
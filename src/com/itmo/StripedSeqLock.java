@@ -0,0 +1,83 @@
+package com.itmo;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * блокировка-последовательность (seqlock) для перезаписи записей на месте, разбитая на полосы по смещению записи.
+ * писатель (под appendLock таблицы) делает номер полосы нечетным, пишет запись и снова делает его четным.
+ * читатель не блокируется: запомнив четный номер полосы до чтения байтов записи, он сравнивает его после разбора;
+ * если номер изменился, запись перезаписывалась во время чтения и ее нужно прочитать заново.
+ * на месте перезаписываются только записи постоянной длины, поэтому заново читается ровно recordSize байт
+ */
+class StripedSeqLock {
+    private static final int STRIPES = 64;
+
+    private final AtomicLongArray sequences = new AtomicLongArray(STRIPES);
+    // длина записи таблицы в байтах
+    final int recordSize;
+
+    StripedSeqLock(int recordSize) {
+        this.recordSize = recordSize;
+    }
+
+    private static int stripe(long offset) {
+        return (Long.hashCode(offset) * 0x9E3779B9) >>> 26;
+    }
+
+    /**
+     * начинает перезапись записи по смещению
+     */
+    void beginWrite(long offset) {
+        sequences.incrementAndGet(stripe(offset));
+    }
+
+    /**
+     * заканчивает перезапись записи по смещению
+     */
+    void endWrite(long offset) {
+        sequences.incrementAndGet(stripe(offset));
+    }
+
+    /**
+     * ждет окончания перезаписи полосы записи и возвращает ее номер, вызывается до чтения байтов записи
+     *
+     * @param offset смещение записи
+     * @return четный номер полосы
+     */
+    long sequence(long offset) {
+        int stripe = stripe(offset);
+        long sequence;
+        while (((sequence = sequences.get(stripe)) & 1) != 0)
+            Thread.onSpinWait();
+        return sequence;
+    }
+
+    /**
+     * @return true, если запись по смещению не перезаписывалась с момента, когда был получен номер sequence
+     */
+    boolean unchanged(long offset, long sequence) {
+        // байты записи читаются обычными чтениями, и без барьера они могут выполниться после повторного чтения номера:
+        // тогда разорванная запись прошла бы проверку
+        VarHandle.acquireFence();
+        return (sequence & 1) == 0 && sequences.get(stripe(offset)) == sequence;
+    }
+
+    /**
+     * @return номера всех полос, снимаются до чтения блока, в котором может оказаться несколько записей
+     */
+    long[] snapshot() {
+        long[] snapshot = new long[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            snapshot[i] = sequences.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return true, если запись по смещению не перезаписывалась с момента снятия snapshot
+     */
+    boolean unchanged(long offset, long[] snapshot) {
+        return unchanged(offset, snapshot[stripe(offset)]);
+    }
+}
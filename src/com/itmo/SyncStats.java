@@ -0,0 +1,67 @@
+package com.itmo;
+
+/**
+ * статистика сбросов на диск одной таблицы
+ */
+public class SyncStats {
+    private final long syncs;
+    private final long writes;
+    private final long totalNanos;
+    private final long maxNanos;
+
+    SyncStats(long syncs, long writes, long totalNanos, long maxNanos) {
+        this.syncs = syncs;
+        this.writes = writes;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /**
+     * @return количество вызовов fsync
+     */
+    public long getSyncs() {
+        return syncs;
+    }
+
+    /**
+     * @return количество записей, попавших на диск через эти fsync
+     */
+    public long getWrites() {
+        return writes;
+    }
+
+    /**
+     * @return среднее количество записей, которое покрывает один fsync
+     */
+    public double getAverageBatchSize() {
+        return syncs == 0 ? 0 : (double) writes / syncs;
+    }
+
+    /**
+     * @return средняя длительность fsync в микросекундах
+     */
+    public double getAverageLatencyMicros() {
+        return syncs == 0 ? 0 : totalNanos / 1000.0 / syncs;
+    }
+
+    /**
+     * @return максимальная длительность fsync в микросекундах
+     */
+    public double getMaxLatencyMicros() {
+        return maxNanos / 1000.0;
+    }
+
+    /**
+     * @return сумма статистики двух шардов таблицы
+     */
+    SyncStats merge(SyncStats other) {
+        return new SyncStats(syncs + other.syncs, writes + other.writes, totalNanos + other.totalNanos,
+                Math.max(maxNanos, other.maxNanos));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("syncs=%d, writes=%d, avgBatch=%.1f, avgLatency=%.1fus, maxLatency=%.1fus",
+                syncs, writes, getAverageBatchSize(), getAverageLatencyMicros(), getMaxLatencyMicros());
+    }
+}
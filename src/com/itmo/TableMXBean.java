@@ -0,0 +1,85 @@
+package com.itmo;
+
+/**
+ * метрики таблицы, доступные через JMX под именем com.itmo:type=KVDataBase,directory=...,table=Type
+ */
+public interface TableMXBean {
+
+    LatencyStats getAdd();
+
+    LatencyStats getGetByKey();
+
+    LatencyStats getFindAll();
+
+    LatencyStats getTruncate();
+
+    /**
+     * @return ожидание блокировки дописывания в файлы таблицы (запись, удаление, сжатие)
+     */
+    LatencyStats getAppendLockWait();
+
+    /**
+     * @return ожидание блокировки таблицы на чтение (поиск и чтение записей)
+     */
+    LatencyStats getTableLockWait();
+
+    /**
+     * @return байт, записанных в файл с данными
+     */
+    long getDataBytesWritten();
+
+    /**
+     * @return байт, записанных в файл с ключами
+     */
+    long getKeyBytesWritten();
+
+    /**
+     * @return байт, прочитанных из файла с данными через канал (чтение через отображение в память не считается)
+     */
+    long getDataBytesRead();
+
+    /**
+     * @return количество ключей в индексе таблицы
+     */
+    long getIndexKeys();
+
+    /**
+     * @return время загрузки индекса ключей при открытии базы в миллисекундах или -1, если индекс не загружался
+     */
+    long getIndexLoadMillis();
+
+    /**
+     * @return объем памяти, который занимает индекс ключей
+     */
+    long getIndexMemoryBytes();
+
+    /**
+     * @return размер файла с данными (сумма длин всех сегментов)
+     */
+    long getDataFileBytes();
+
+    /**
+     * @return доля устаревших записей в файле с ключами
+     */
+    double getDeadRatio();
+
+    /**
+     * @return оценка места, занятого устаревшими записями в файле с данными: размер файла, умноженный на долю устаревших записей
+     */
+    long getEstimatedDeadBytes();
+
+    /**
+     * @return объем изменений, еще не записанных в файлы, в режиме записи в фоне
+     */
+    long getPendingWriteBytes();
+
+    /**
+     * @return количество фоновых сжатий, завершившихся ошибкой
+     */
+    long getFailedCompactions();
+
+    /**
+     * @return ошибка последнего неудавшегося фонового сжатия или null
+     */
+    String getLastCompactionError();
+}
@@ -0,0 +1,42 @@
+package com.itmo;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * счетчики одной таблицы: длительности операций, ожидание блокировок, прочитанные и записанные байты.
+ * все счетчики - LongAdder, запись не блокирует потоки
+ */
+class TableMetrics {
+    private final LatencyHistogram[] operations = new LatencyHistogram[MetricsListener.Operation.values().length];
+    final LatencyHistogram appendLockWait = new LatencyHistogram();
+    final LatencyHistogram tableLockWait = new LatencyHistogram();
+    final LongAdder dataBytesWritten = new LongAdder();
+    final LongAdder keyBytesWritten = new LongAdder();
+    final LongAdder dataBytesRead = new LongAdder();
+    final LongAdder failedCompactions = new LongAdder();
+    // ошибка последнего неудавшегося фонового сжатия или null
+    volatile Throwable lastCompactionError;
+    Class<?> type;
+    MetricsListener listener;
+
+    TableMetrics() {
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * записывает длительность операции, начатой в момент startNanos (System.nanoTime())
+     */
+    void record(MetricsListener.Operation operation, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        operations[operation.ordinal()].record(nanos);
+        MetricsListener listener = this.listener;
+        if (listener != null)
+            listener.onOperation(type, operation, nanos);
+    }
+
+    LatencyStats stats(MetricsListener.Operation operation) {
+        return operations[operation.ordinal()].snapshot();
+    }
+}
@@ -0,0 +1,108 @@
+package com.itmo;
+
+/**
+ * MXBean таблицы: счетчики берутся из {@link TableMetrics}, размеры индекса и файлов - из текущего состояния таблицы
+ */
+class TableMonitor implements TableMXBean {
+    private final KVDataBase db;
+    private final DbDescriptor descriptor;
+
+    TableMonitor(KVDataBase db, DbDescriptor descriptor) {
+        this.db = db;
+        this.descriptor = descriptor;
+    }
+
+    @Override
+    public LatencyStats getAdd() {
+        return descriptor.metrics.stats(MetricsListener.Operation.ADD);
+    }
+
+    @Override
+    public LatencyStats getGetByKey() {
+        return descriptor.metrics.stats(MetricsListener.Operation.GET_BY_KEY);
+    }
+
+    @Override
+    public LatencyStats getFindAll() {
+        return descriptor.metrics.stats(MetricsListener.Operation.FIND_ALL);
+    }
+
+    @Override
+    public LatencyStats getTruncate() {
+        return descriptor.metrics.stats(MetricsListener.Operation.TRUNCATE);
+    }
+
+    @Override
+    public LatencyStats getAppendLockWait() {
+        return descriptor.metrics.appendLockWait.snapshot();
+    }
+
+    @Override
+    public LatencyStats getTableLockWait() {
+        return descriptor.metrics.tableLockWait.snapshot();
+    }
+
+    @Override
+    public long getDataBytesWritten() {
+        return descriptor.metrics.dataBytesWritten.sum();
+    }
+
+    @Override
+    public long getKeyBytesWritten() {
+        return descriptor.metrics.keyBytesWritten.sum();
+    }
+
+    @Override
+    public long getDataBytesRead() {
+        return descriptor.metrics.dataBytesRead.sum();
+    }
+
+    @Override
+    public long getIndexKeys() {
+        KeyOffsetIndex index = db.keyIndex(descriptor);
+        return index == null ? 0 : index.size();
+    }
+
+    @Override
+    public long getIndexLoadMillis() {
+        return db.indexLoadMillis(descriptor);
+    }
+
+    @Override
+    public long getIndexMemoryBytes() {
+        KeyOffsetIndex index = db.keyIndex(descriptor);
+        return index == null ? 0 : index.memoryUsage();
+    }
+
+    @Override
+    public long getDataFileBytes() {
+        return descriptor.dataBytes();
+    }
+
+    @Override
+    public double getDeadRatio() {
+        return db.deadRatio(descriptor);
+    }
+
+    @Override
+    public long getEstimatedDeadBytes() {
+        return (long) (descriptor.dataBytes() * db.deadRatio(descriptor));
+    }
+
+    @Override
+    public long getPendingWriteBytes() {
+        Memtable memtable = descriptor.memtable;
+        return memtable == null ? 0 : memtable.bytes();
+    }
+
+    @Override
+    public long getFailedCompactions() {
+        return descriptor.metrics.failedCompactions.sum();
+    }
+
+    @Override
+    public String getLastCompactionError() {
+        Throwable error = descriptor.metrics.lastCompactionError;
+        return error == null ? null : error.toString();
+    }
+}
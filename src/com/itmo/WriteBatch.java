@@ -0,0 +1,107 @@
+package com.itmo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * пакет изменений (добавление, обновление, удаление), который записывается в базу целиком.
+ * создается методом {@link KVDataBase#newBatch()}:
+ * <pre>
+ *     db.newBatch().put(1, a).put(2, b).remove(3, A.class).commit();
+ * </pre>
+ * изменения одной таблицы пишутся в файл с данными и в файл с ключами одной записью на каждый файл,
+ * а новые смещения становятся видны читателям одновременно, после записи всего пакета.
+ * изменения одного ключа применяются в том порядке, в котором добавлены в пакет
+ */
+public class WriteBatch {
+    private final KVDataBase dataBase;
+    private final Map<Class<?>, List<Operation>> operations = new LinkedHashMap<>();
+    private boolean committed;
+
+    WriteBatch(KVDataBase dataBase) {
+        this.dataBase = dataBase;
+    }
+
+    /**
+     * добавляет в пакет сохранение объекта по ключу (добавление или обновление)
+     *
+     * @param key    ключ объекта
+     * @param object сохраняемый объект
+     * @return возвращает этот же пакет
+     */
+    public WriteBatch put(int key, Object object) {
+        if (object == null)
+            throw new NullPointerException("object");
+        return addOperation(object.getClass(), new Operation(key, object));
+    }
+
+    /**
+     * добавляет в пакет удаление объекта
+     *
+     * @param key  удаляемый ключ
+     * @param type тип удаляемого объекта
+     * @return возвращает этот же пакет
+     */
+    public WriteBatch remove(int key, Class<?> type) {
+        return addOperation(type, new Operation(key, null));
+    }
+
+    /**
+     * @return количество изменений в пакете
+     */
+    public int size() {
+        int size = 0;
+        for (List<Operation> list : operations.values()) {
+            size += list.size();
+        }
+        return size;
+    }
+
+    /**
+     * записывает все изменения пакета в базу. пакет можно применить только один раз
+     */
+    public void commit() {
+        if (committed)
+            throw new IllegalStateException("Batch is already committed");
+        committed = true;
+        if (!operations.isEmpty())
+            dataBase.writeBatch(operations);
+    }
+
+    private WriteBatch addOperation(Class<?> type, Operation operation) {
+        if (committed)
+            throw new IllegalStateException("Batch is already committed");
+        operations.computeIfAbsent(type, t -> new ArrayList<>()).add(operation);
+        return this;
+    }
+
+    /**
+     * одно изменение пакета, object == null и record == null означает удаление
+     */
+    static class Operation {
+        final int key;
+        final Object object;
+        // уже закодированный объект (сброс изменений из памяти) или null
+        final byte[] record;
+
+        Operation(int key, Object object) {
+            this(key, object, null);
+        }
+
+        /**
+         * @param object объект, нужен только для вторичных индексов, может быть null
+         * @param record закодированный объект
+         */
+        Operation(int key, Object object, byte[] record) {
+            this.key = key;
+            this.object = object;
+            this.record = record;
+        }
+
+        boolean isRemove() {
+            return object == null && record == null;
+        }
+    }
+}
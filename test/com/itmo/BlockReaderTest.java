@@ -0,0 +1,71 @@
+package com.itmo;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlockReaderTest {
+    private static final int RECORDS = 1000;
+    private static final RecordReader LONG_READER = (input, offset) -> input.readLong();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void overwrittenRecordIsRereadAlone() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve("data"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < RECORDS; i++) {
+                write(channel, i, i);
+            }
+            StripedSeqLock seqLock = new StripedSeqLock(Long.BYTES);
+            BlockReader reader = new BlockReader(channel);
+            assertEquals(0L, reader.readRecord(LONG_READER, 0, seqLock));
+
+            long[] before = seqLock.snapshot();
+            int overwritten = 500;
+            seqLock.beginWrite(overwritten * Long.BYTES);
+            write(channel, overwritten, -1);
+            seqLock.endWrite(overwritten * Long.BYTES);
+            // запись другой полосы меняется без блокировки: ее новое значение видно, только если блок прочитан заново
+            int other = overwritten + 1;
+            while (!seqLock.unchanged(other * Long.BYTES, before))
+                other++;
+            assertTrue(other < RECORDS);
+            write(channel, other, -1);
+
+            assertEquals(-1L, reader.readRecord(LONG_READER, overwritten * Long.BYTES, seqLock));
+            assertEquals((long) other, reader.readRecord(LONG_READER, other * Long.BYTES, seqLock));
+        }
+    }
+
+    @Test
+    void readLineStopsAtAnyLineEnd() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve("lines"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap("a\nbc\r\n\rd\re".getBytes(StandardCharsets.ISO_8859_1)));
+            BlockReader reader = new BlockReader(channel, 4);
+            assertEquals("a", reader.readLine());
+            assertEquals("bc", reader.readLine());
+            assertEquals("", reader.readLine());
+            assertEquals("d", reader.readLine());
+            assertEquals("e", reader.readLine());
+            assertNull(reader.readLine());
+        }
+    }
+
+    private static void write(FileChannel channel, int index, long value) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(0, value);
+        channel.write(buffer, (long) index * Long.BYTES);
+    }
+}
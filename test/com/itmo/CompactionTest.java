@@ -0,0 +1,134 @@
+package com.itmo;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompactionTest {
+    private static final int KEYS = 2000;
+    private static final int WRITERS = 4;
+    private static final int ROUNDS = 40;
+
+    public static class Account {
+        int id;
+        long version;
+        String text;
+
+        public Account() {
+        }
+
+        Account(int id, long version) {
+            this.id = id;
+            this.version = version;
+            // длина записи меняется, так что перезаписи на месте нет и каждое изменение оставляет устаревшую запись
+            this.text = "v" + version + "-".repeat((int) (version % 7));
+        }
+
+        boolean consistent() {
+            return text.equals("v" + version + "-".repeat((int) (version % 7)));
+        }
+    }
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void close() {
+        KVDataBase.close(directory.toString());
+    }
+
+    @Test
+    void compactionKeepsWritesMadeDuringIt() throws Exception {
+        DbOptions options = new DbOptions().segmentSize(32 * 1024).autoCompaction(0.5);
+        KVDataBase db = KVDataBase.open(directory.toString(), options);
+        AtomicLongArray versions = new AtomicLongArray(KEYS);
+        for (int key = 0; key < KEYS; key++) {
+            db.add(key, new Account(key, 0));
+        }
+
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicInteger errors = new AtomicInteger();
+        Thread[] writers = new Thread[WRITERS];
+        for (int w = 0; w < WRITERS; w++) {
+            int first = w;
+            writers[w] = new Thread(() -> {
+                for (int round = 1; round <= ROUNDS; round++) {
+                    for (int key = first; key < KEYS; key += WRITERS) {
+                        if (key % 50 == 0 && round == ROUNDS / 2) {
+                            db.remove(key, Account.class);
+                            versions.set(key, -1);
+                        } else if (versions.get(key) >= 0) {
+                            db.add(key, new Account(key, round));
+                            versions.set(key, round);
+                        }
+                    }
+                }
+            });
+            writers[w].start();
+        }
+        Thread reader = new Thread(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (!stop.get()) {
+                int key = random.nextInt(KEYS);
+                Account account = db.getByKey(key, Account.class);
+                if (account != null && (account.id != key || !account.consistent()))
+                    errors.incrementAndGet();
+            }
+        });
+        reader.start();
+        Thread truncator = new Thread(() -> {
+            while (!stop.get()) {
+                db.truncate(Account.class);
+            }
+        });
+        truncator.start();
+
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        stop.set(true);
+        reader.join();
+        truncator.join();
+        while (db.getCompactionStats(Account.class).isRunning()) {
+            Thread.sleep(10);
+        }
+
+        CompactionStats stats = db.getCompactionStats(Account.class);
+        assertEquals(0, errors.get());
+        assertEquals(0, stats.getFailedCompactions(), String.valueOf(stats.getLastError()));
+        assertTrue(stats.getCompactions() > 0);
+        verify(db, versions);
+
+        db.truncate(Account.class);
+        verify(db, versions);
+        KVDataBase.close(directory.toString());
+        verify(KVDataBase.open(directory.toString(), options), versions);
+    }
+
+    private static void verify(KVDataBase db, AtomicLongArray versions) {
+        int live = 0;
+        for (int key = 0; key < KEYS; key++) {
+            Account account = db.getByKey(key, Account.class);
+            if (versions.get(key) < 0) {
+                assertNull(account, "key " + key);
+            } else {
+                live++;
+                assertEquals(versions.get(key), account.version, "key " + key);
+                assertTrue(account.consistent(), "key " + key);
+            }
+        }
+        List<Account> all = db.findAll(Account.class, account -> true);
+        assertEquals(live, all.size());
+    }
+}
@@ -0,0 +1,86 @@
+package com.itmo;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FilterTest {
+    public static class Point {
+        int id;
+        double x;
+        float y;
+
+        public Point() {
+        }
+
+        Point(int id, double x) {
+            this.id = id;
+            this.x = x;
+            this.y = (float) x;
+        }
+    }
+
+    @TempDir
+    Path directory;
+
+    private KVDataBase db;
+
+    @BeforeEach
+    void open() {
+        db = KVDataBase.open(directory.toString());
+        db.add(0, new Point(0, 0.0));
+        db.add(1, new Point(1, -0.0));
+        db.add(2, new Point(2, Double.NaN));
+        db.add(3, new Point(3, 1.0));
+        db.add(4, new Point(4, -1.0));
+    }
+
+    @AfterEach
+    void close() {
+        KVDataBase.close(directory.toString());
+    }
+
+    @Test
+    void negativeZeroEqualsZero() {
+        for (String field : new String[]{"x", "y"}) {
+            assertEquals(Set.of(0, 1), ids(Filters.eq(field, 0.0)), field);
+            assertEquals(Set.of(0, 1), ids(Filters.eq(field, -0.0)), field);
+            assertEquals(Set.of(0, 1), ids(Filters.eq(field, 0)), field);
+            assertEquals(Set.of(3), ids(Filters.gt(field, -0.0)), field);
+            assertEquals(Set.of(4), ids(Filters.lt(field, 0.0)), field);
+        }
+    }
+
+    @Test
+    void nanMatchesOnlyNotEqual() {
+        for (String field : new String[]{"x", "y"}) {
+            assertEquals(Set.of(3), ids(Filters.gt(field, 0.0)), field);
+            assertEquals(Set.of(0, 1, 3), ids(Filters.ge(field, 0.0)), field);
+            assertEquals(Set.of(0, 1, 4), ids(Filters.le(field, 0.0)), field);
+            assertEquals(Set.of(2, 3, 4), ids(Filters.ne(field, 0.0)), field);
+            assertEquals(Set.of(), ids(Filters.eq(field, Double.NaN)), field);
+            assertEquals(Set.of(0, 1, 2, 3, 4), ids(Filters.ne(field, Double.NaN)), field);
+            assertEquals(Set.of(), ids(Filters.gt(field, Double.NaN)), field);
+        }
+    }
+
+    private Set<Integer> ids(Filter filter) {
+        List<Point> points = db.findAll(Point.class, filter);
+        Set<Integer> ids = new TreeSet<>();
+        // findAll возвращает null, если подходящих объектов нет
+        if (points != null) {
+            for (Point point : points) {
+                ids.add(point.id);
+            }
+        }
+        return ids;
+    }
+}
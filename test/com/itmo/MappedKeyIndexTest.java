@@ -0,0 +1,118 @@
+package com.itmo;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MappedKeyIndexTest {
+    private static final int KEYS = 5000;
+
+    public static class Entry {
+        int id;
+        long value;
+
+        public Entry() {
+        }
+
+        Entry(int id, long value) {
+            this.id = id;
+            this.value = value;
+        }
+    }
+
+    @TempDir
+    Path directory;
+
+    private final List<String> opened = new ArrayList<>();
+
+    @AfterEach
+    void close() {
+        for (String path : opened) {
+            KVDataBase.close(path);
+        }
+    }
+
+    private KVDataBase open(Path path) {
+        KVDataBase db = KVDataBase.open(path.toString(), new DbOptions().mappedIndex(true));
+        opened.add(path.toString());
+        return db;
+    }
+
+    private void close(Path path) {
+        KVDataBase.close(path.toString());
+        opened.remove(path.toString());
+    }
+
+    @Test
+    void indexIsRebuiltAfterUncleanClose() throws IOException {
+        Path db = directory.resolve("db");
+        Files.createDirectories(db);
+        KVDataBase open = open(db);
+        add(open);
+        // отображенные страницы индекса могут не дойти до диска до сбоя: на диске остается индекс, отставший от ключей
+        Path crashed = directory.resolve("crashed");
+        Files.createDirectories(crashed);
+        Files.copy(db.resolve("Entry.kvhx"), crashed.resolve("Entry.kvhx"));
+        change(open);
+        for (File file : db.toFile().listFiles()) {
+            if (!file.getName().endsWith(".kvhx"))
+                Files.copy(file.toPath(), crashed.resolve(file.getName()));
+        }
+
+        verify(open(crashed));
+    }
+
+    @Test
+    void indexIsMappedAfterCleanClose() {
+        Path db = directory.resolve("db");
+        write(open(db));
+        close(db);
+
+        KVDataBase reopened = open(db);
+        verify(reopened);
+        // изменения после повторного открытия тоже попадают в индекс
+        reopened.add(KEYS, new Entry(KEYS, 1));
+        close(db);
+        assertEquals(1, open(db).getByKey(KEYS, Entry.class).value);
+    }
+
+    private static void write(KVDataBase db) {
+        add(db);
+        change(db);
+    }
+
+    private static void add(KVDataBase db) {
+        for (int key = 0; key < KEYS; key++) {
+            db.add(key, new Entry(key, key));
+        }
+    }
+
+    private static void change(KVDataBase db) {
+        for (int key = 0; key < KEYS; key += 3) {
+            db.add(key, new Entry(key, -key));
+        }
+        for (int key = 0; key < KEYS; key += 5) {
+            db.remove(key, Entry.class);
+        }
+    }
+
+    private static void verify(KVDataBase db) {
+        for (int key = 0; key < KEYS; key++) {
+            Entry entry = db.getByKey(key, Entry.class);
+            if (key % 5 == 0)
+                assertNull(entry, "key " + key);
+            else
+                assertEquals(key % 3 == 0 ? -key : key, entry.value, "key " + key);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.itmo;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MappedReadsTest {
+    public static class Note {
+        int id;
+        String text;
+        long stamp;
+
+        public Note() {
+        }
+
+        Note(int id, String text) {
+            this.id = id;
+            this.text = text;
+            this.stamp = id * 31L;
+        }
+    }
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void close() {
+        KVDataBase.close(directory.toString());
+    }
+
+    @Test
+    void recordsAppendedAfterMappingAreRead() {
+        KVDataBase db = KVDataBase.open(directory.toString(), new DbOptions().mappedReads(true));
+        int count = 20000;
+        for (int i = 0; i < count; i++) {
+            db.add(i, new Note(i, "note " + i + "x".repeat(i % 100)));
+            // только что дописанная запись лежит за концом отображения
+            Note note = db.getByKey(i, Note.class);
+            assertEquals("note " + i + "x".repeat(i % 100), note.text);
+            assertEquals(i * 31L, note.stamp);
+            if (i % 1000 == 0)
+                assertEquals(i / 2 * 31L, db.getByKey(i / 2, Note.class).stamp);
+        }
+        assertEquals(count, db.findAll(Note.class, note -> true).size());
+    }
+}
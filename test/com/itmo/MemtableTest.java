@@ -0,0 +1,71 @@
+package com.itmo;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MemtableTest {
+
+    @Test
+    void failedFlushIsReportedToNextWrite() throws Exception {
+        Memtable memtable = new Memtable(1 << 20, () -> {
+        });
+        memtable.put(1, new byte[]{1});
+        memtable.beginFlush();
+        IOException failure = new IOException("disk full");
+        memtable.abortFlush(failure);
+
+        IOException thrown = assertThrows(IOException.class, () -> memtable.put(2, new byte[]{2}));
+        assertSame(failure, thrown.getCause());
+        // записи неудавшегося сброса остаются в памяти
+        assertArrayEquals(new byte[]{1}, memtable.get(1));
+
+        memtable.beginFlush();
+        memtable.endFlush();
+        memtable.put(2, new byte[]{2});
+        assertArrayEquals(new byte[]{2}, memtable.get(2));
+    }
+
+    @Test
+    void failedFlushWakesBlockedWriter() throws Exception {
+        Memtable memtable = new Memtable(1, () -> {
+        });
+        memtable.put(1, new byte[]{1});
+        memtable.beginFlush();
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            try {
+                memtable.put(2, new byte[]{2});
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        memtable.abortFlush(new IOException("disk full"));
+
+        ExecutionException thrown = assertThrows(ExecutionException.class, () -> writer.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, thrown.getCause().getCause());
+    }
+
+    @Test
+    void rejectedFlushCanBeRequestedAgain() {
+        AtomicInteger requests = new AtomicInteger();
+        Memtable memtable = new Memtable(1 << 20, () -> {
+            requests.incrementAndGet();
+            throw new RejectedExecutionException();
+        });
+        assertThrows(RejectedExecutionException.class, memtable::requestFlush);
+        assertThrows(RejectedExecutionException.class, memtable::requestFlush);
+        assertEquals(2, requests.get());
+    }
+}
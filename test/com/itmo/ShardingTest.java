@@ -0,0 +1,36 @@
+package com.itmo;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardingTest {
+    private static final int KEYS = 1 << 16;
+
+    @Test
+    void stridedKeysAreSpreadOverShards() {
+        for (int shards : new int[]{2, 3, 4, 7, 8, 16}) {
+            for (int stride : new int[]{1, 2, 4, 8, 16, 64, 1024}) {
+                int[] counts = new int[shards];
+                for (int i = 0; i < KEYS; i++) {
+                    counts[KVDataBase.shardOf(i * stride, shards)]++;
+                }
+                int expected = KEYS / shards;
+                for (int count : counts) {
+                    assertTrue(Math.abs(count - expected) < expected / 10,
+                            "shards=" + shards + " stride=" + stride + " count=" + count);
+                }
+            }
+        }
+    }
+
+    @Test
+    void shardIsInRange() {
+        for (int shards = 1; shards <= 33; shards++) {
+            for (int key : new int[]{0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 123456789}) {
+                int shard = KVDataBase.shardOf(key, shards);
+                assertTrue(shard >= 0 && shard < shards, "shards=" + shards + " key=" + key);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.itmo;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TruncateTest {
+    public static class Item {
+        int id;
+        long value;
+
+        public Item() {
+        }
+
+        Item(int id, long value) {
+            this.id = id;
+            this.value = value;
+        }
+    }
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void close() {
+        KVDataBase.close(directory.toString());
+    }
+
+    @Test
+    void truncateOfCleanTableKeepsSegments() {
+        KVDataBase db = KVDataBase.open(directory.toString(), new DbOptions().segmentSize(4096));
+        for (int i = 0; i < 1000; i++) {
+            db.add(i, new Item(i, i));
+        }
+        String[] before = files();
+        db.truncate(Item.class);
+        db.truncate(Item.class);
+        assertArrayEquals(before, files());
+        assertEquals(999, db.getByKey(999, Item.class).value);
+    }
+
+    @Test
+    void truncateRewritesActiveSegment() {
+        KVDataBase db = KVDataBase.open(directory.toString(), new DbOptions().segmentSize(1 << 20));
+        for (int i = 0; i < 100; i++) {
+            db.add(i, new Item(i, i));
+        }
+        for (int i = 0; i < 100; i += 2) {
+            db.remove(i, Item.class);
+        }
+        long before = dataBytes();
+        db.truncate(Item.class);
+        assertEquals(before / 2, dataBytes());
+        assertEquals(99, db.getByKey(99, Item.class).value);
+    }
+
+    private long dataBytes() {
+        long bytes = 0;
+        for (File file : directory.toFile().listFiles()) {
+            if (file.getName().matches("Item(\\.\\d+)?\\.kvdb"))
+                bytes += file.length();
+        }
+        return bytes;
+    }
+
+    private String[] files() {
+        String[] names = directory.toFile().list();
+        Arrays.sort(names);
+        return names;
+    }
+}